@@ -23,6 +23,8 @@ public class BootReceiver extends BroadcastReceiver {
         }
 
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            // GMS forgets geofences on reboot, so they all need registering again.
+            GeofenceSync.getInstance(context).clear();
             Log.d(TAG, "enqueueing job on LocationService to wake it up");
             LocationService.enqueueWork(context);
         }
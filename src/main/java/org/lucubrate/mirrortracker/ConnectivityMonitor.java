@@ -0,0 +1,145 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide view of the default network.
+ * <p>
+ * Registers one default network callback and keeps the latest state as an immutable
+ * {@link Snapshot}, so checking connectivity is a field read rather than binder calls into the
+ * system.  Listeners are told whenever the snapshot changes.
+ */
+final class ConnectivityMonitor {
+    private static final String TAG = "ConnectivityMonitor";
+
+    /** Default network state. */
+    static final class Snapshot {
+        static final Snapshot DISCONNECTED = new Snapshot(false, false, false, false);
+
+        /** Whether there is a wifi or cellular network, as required to reach the db. */
+        final boolean connected;
+        final boolean wifi;
+        final boolean metered;
+        /** Whether the system has verified the network reaches the internet. */
+        final boolean validated;
+
+        private Snapshot(boolean connected, boolean wifi, boolean metered, boolean validated) {
+            this.connected = connected;
+            this.wifi = wifi;
+            this.metered = metered;
+            this.validated = validated;
+        }
+
+        static Snapshot of(@Nullable NetworkCapabilities c) {
+            if (c == null) {
+                return DISCONNECTED;
+            }
+            boolean wifi = c.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
+            return new Snapshot(
+                    wifi || c.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR),
+                    wifi,
+                    !c.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED),
+                    c.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED));
+        }
+
+        boolean sameAs(Snapshot s) {
+            return connected == s.connected && wifi == s.wifi && metered == s.metered &&
+                    validated == s.validated;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return connected ? (wifi ? "wifi" : "cellular") + (metered ? " metered" : "") +
+                    (validated ? " validated" : "") : "disconnected";
+        }
+    }
+
+    /** Receives connectivity changes on the executor it was added with. */
+    interface Listener {
+        void onConnectivityChanged(Snapshot snapshot);
+    }
+
+    private static ConnectivityMonitor mMonitor;
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>();
+    private final CopyOnWriteArrayList<Registration> mListeners = new CopyOnWriteArrayList<>();
+
+    /** Gets singleton instance of ConnectivityMonitor, registering for updates on first use. */
+    static synchronized ConnectivityMonitor getInstance(Context context) {
+        if (mMonitor == null) {
+            mMonitor = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return mMonitor;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        ConnectivityManager manager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        // Seed once, so callers don't see a false disconnect before the first callback.
+        Network network = manager.getActiveNetwork();
+        mSnapshot.set(network == null ?
+                Snapshot.DISCONNECTED : Snapshot.of(manager.getNetworkCapabilities(network)));
+        manager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network,
+                                              @NonNull NetworkCapabilities capabilities) {
+                update(Snapshot.of(capabilities));
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                update(Snapshot.DISCONNECTED);
+            }
+        });
+    }
+
+    /** @return latest default network state */
+    Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    void addListener(Listener l, Executor executor) {
+        mListeners.add(new Registration(l, executor));
+    }
+
+    void removeListener(Listener l) {
+        for (Registration r : mListeners) {
+            if (r.listener == l) {
+                mListeners.remove(r);
+            }
+        }
+    }
+
+    private void update(Snapshot s) {
+        Snapshot previous = mSnapshot.getAndSet(s);
+        if (previous.sameAs(s)) {
+            return;
+        }
+        Log.d(TAG, "network " + s);
+        for (Registration r : mListeners) {
+            r.executor.execute(() -> r.listener.onConnectivityChanged(s));
+        }
+    }
+
+    private static final class Registration {
+        final Listener listener;
+        final Executor executor;
+
+        Registration(Listener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+}
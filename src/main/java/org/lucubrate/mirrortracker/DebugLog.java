@@ -1,51 +1,94 @@
 package org.lucubrate.mirrortracker;
 
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.JsonReader;
-import android.util.JsonWriter;
+import android.util.Log;
+import androidx.annotation.Nullable;
 
 import com.google.android.gms.location.GeofencingEvent;
 import com.google.android.gms.location.LocationResult;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
-
-import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_DWELL;
-import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
-import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Append-only non-volatile debug log.
+ * <p>
+ * Events are stored as compact typed binary records (see {@link DebugLogRecords}), one per
+ * record in a memory-mapped {@link RingLog}, and only rendered to text when the log is displayed.
+ * Geofence ids are replaced by ids from a {@link StringDictionary} kept alongside the ring.
+ * <p>
+ * Logging never blocks, allocates, or does I/O on the calling thread.  Each event's fields are
+ * copied into a preallocated slot of a lock-free {@link MpscQueue} and encoded and written by a
+ * dedicated writer thread, which drains the queue in batches and syncs each batch to storage
+ * once (group commit).  If the queue is full, events are dropped and the drop count is logged in
+ * their place.  {@link #flush()} waits for queued events to be committed.
+ * <p>
+ * The log is opened, and the earlier JSON log imported, on the writer thread, so getting the
+ * instance costs no I/O.  Events logged meanwhile wait in the queue, and readers see an empty log
+ * until it's open.
+ * <p>
+ * Every record has a sequence number (see {@link RingLog}).  The observer is told only about the
+ * lines each batch appends, and readers page through the log with {@link #getLine}.
  */
 final class DebugLog {
-    final private static String FILE_NAME = "debug_log.json";
-    final private static int MAX_LOG_LINES = 100;
+    private static final String TAG = "DebugLog";
+    final private static String FILE_NAME = "debug_log.bin";
+    final private static String DICTIONARY_FILE_NAME = "debug_log.dict";
+    /** Earlier JSON log, imported on first open. */
+    final private static String LEGACY_FILE_NAME = "debug_log.json";
+    /** Room for roughly 400k events. */
+    final private static int RING_BYTES = 8 * 1024 * 1024;
+    final private static int MAX_QUEUED_LINES = 1024;
+    final private static int MAX_BATCH_LINES = 256;
+    final private static long FLUSH_TIMEOUT_MS = 2000;
     private static DebugLog mDebugLog;
 
-    private final File mLogFile;
+    private final File mFileDir;
+    // Set by the writer thread once open; null until then, or if the log couldn't be opened, in
+    // which case events are dropped.  mDictionary is set first.
+    @Nullable private volatile RingLog mLog;
+    @Nullable private volatile StringDictionary mDictionary;
+    @Nullable private volatile DebugLogWriteObserver observer;
+    @Nullable private volatile Executor observerExecutor;
+
+    private final MpscQueue mQueue = new MpscQueue(MAX_QUEUED_LINES);
+    // Queued events, indexed by queue slot.
+    private final byte[] mTypes = new byte[mQueue.capacity()];
+    private final long[] mTimes = new long[mQueue.capacity()];
+    private final int[] mArgs = new int[3 * mQueue.capacity()];
+    private final Object[] mRefs = new Object[mQueue.capacity()];
+    // Writer thread's record buffer.
+    private final ByteBuffer mRecord = ByteBuffer.allocate(DebugLogRecords.MAX_RECORD_BYTES);
+    private final Calendar mWriterCalendar = Calendar.getInstance();
+    private final Calendar mReaderCalendar = Calendar.getInstance();
 
-    // Circular buffer of log lines, capped at MAX_LOG_LINES size.
-    private final List<String> mLogLines;
-    // Index of the next slot to be written in circular mLogLines buffer.
-    private int mLogIndex;
-    private DebugLogWriteObserver observer;
+    private final Thread mWriter;
+    // Set while the writer is parked waiting for events.
+    private final AtomicBoolean mWriterParked = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mEnqueued = new AtomicLong();
+    // Events committed to storage; only written by the writer thread.
+    private volatile long mCommitted;
+    private final Object mFlushLock = new Object();
 
     /**
      * Gets singleton instance of DebugLog.
      * @param fileDir directory to which the debug log file will be written
      */
-    static DebugLog getInstance(File fileDir) {
+    static synchronized DebugLog getInstance(File fileDir) {
         if (mDebugLog == null) {
             mDebugLog = new DebugLog(fileDir);
         }
@@ -54,151 +97,274 @@ final class DebugLog {
 
 
     private DebugLog(File fileDir) {
-        mLogLines = Collections.synchronizedList(new ArrayList<>());
-        mLogIndex = 0;
+        mFileDir = fileDir;
+        mWriter = new Thread(this::runWriter, "DebugLogWriter");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
 
-        mLogFile = new File(fileDir, FILE_NAME);
-        if (!mLogFile.exists()) {
-            try {
+    /** Opens the log and imports the earlier JSON log.  Writer thread only. */
+    private void open() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            StringDictionary dictionary =
+                    new StringDictionary(new File(mFileDir, DICTIONARY_FILE_NAME));
+            RingLog log = new RingLog(new File(mFileDir, FILE_NAME), RING_BYTES);
+            File legacy = new File(mFileDir, LEGACY_FILE_NAME);
+            if (legacy.exists()) {
+                if (log.isEmpty()) {
+                    importLegacyLog(legacy, log);
+                }
                 //noinspection ResultOfMethodCallIgnored
-                mLogFile.createNewFile();
-            } catch (IOException ignored) {}
+                legacy.delete();
+            }
+            mDictionary = dictionary;
+            mLog = log;
+            Log.i(TAG, "opened debug log in " + (SystemClock.elapsedRealtime() - start) +
+                    " ms with " + (log.nextSequence() - log.firstSequence()) + " lines");
+        } catch (IOException e) {
+            Log.e(TAG, "failed to open debug log", e);
         }
-        if (mLogFile.canRead() && mLogFile.length() > 0) {
-            try {
-                JsonReader reader = new JsonReader(
-                        new InputStreamReader(Files.newInputStream(mLogFile.toPath())));
-                reader.beginArray();
-                while (reader.hasNext()) {
-                    mLogLines.add(reader.nextString());
-                }
-                reader.endArray();
-            } catch (IOException ignored) {}
-            while (mLogLines.size() > MAX_LOG_LINES) {
-                mLogLines.remove(0);
+    }
+
+    /** Appends a pre-formatted line from the JSON log to log. */
+    private static void appendText(RingLog log, byte[] line) {
+        ByteBuffer record = ByteBuffer.allocate(9 + line.length)
+                .put(DebugLogRecords.TEXT)
+                .putLong(0)
+                .put(line);
+        record.flip();
+        log.append(record);
+    }
+
+    /** Streams the lines of the JSON log format into log. */
+    private static void importLegacyLog(File file, RingLog log) {
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(Files.newInputStream(file.toPath())))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                appendText(log, reader.nextString().getBytes(StandardCharsets.UTF_8));
             }
-            mLogIndex = mLogLines.size() % MAX_LOG_LINES;
+            reader.endArray();
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "failed to read legacy debug log", e);
         }
     }
 
     /**
-     * @param observer callback invoked whenever log is updated
+     * @param observer callback invoked on executor whenever log is updated
      */
-    void setObserver(DebugLogWriteObserver observer) {
+    void setObserver(@Nullable DebugLogWriteObserver observer, @Nullable Executor executor) {
+        this.observerExecutor = executor;
         this.observer = observer;
     }
 
-    synchronized List<String> getLogLines() {
-        if (mLogLines.size() < MAX_LOG_LINES) {
-            return new ArrayList<>(mLogLines);
+    /** Blocks until events logged before this call are committed to storage, or a timeout. */
+    void flush() {
+        long target = mEnqueued.get();
+        LockSupport.unpark(mWriter);
+        long deadline = SystemClock.elapsedRealtime() + FLUSH_TIMEOUT_MS;
+        synchronized (mFlushLock) {
+            while (mCommitted < target) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out flushing debug log");
+                    return;
+                }
+                try {
+                    mFlushLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** @return sequence number of the oldest line in the log */
+    long firstSequence() {
+        RingLog log = mLog;
+        return log != null ? log.firstSequence() : 0;
+    }
+
+    /** @return sequence number the next line logged will get */
+    long nextSequence() {
+        RingLog log = mLog;
+        return log != null ? log.nextSequence() : 0;
+    }
+
+    /** @return line with sequence number rendered as text, or null if it isn't in the log */
+    @Nullable
+    synchronized String getLine(long sequence) {
+        RingLog log = mLog;
+        if (log == null) {
+            return null;
         }
-        List<String> ret = new ArrayList<>(mLogLines.size());
-        ret.addAll(mLogLines.subList(mLogIndex, mLogLines.size()));
-        if (mLogIndex != 0) {
-            ret.addAll(mLogLines.subList(0, mLogIndex));
+        byte[] record = log.read(sequence);
+        if (record == null) {
+            return null;
         }
-        return ret;
+        return DebugLogRecords.render(ByteBuffer.wrap(record), mDictionary, mReaderCalendar);
     }
 
-    private void write() {
-        if (!mLogFile.canWrite()) {
+    /** Queues an event for the writer thread. */
+    private void addEvent(byte type, int a, int b, int c, @Nullable Object ref) {
+        long ticket = mQueue.claim();
+        if (ticket < 0) {
+            mDropped.incrementAndGet();
             return;
         }
-        FileOutputStream stream;
-        try {
-            stream = new FileOutputStream(mLogFile);
-        } catch (FileNotFoundException e) {
-            return;
+        int slot = mQueue.slot(ticket);
+        mTypes[slot] = type;
+        mTimes[slot] = System.currentTimeMillis();
+        mArgs[3 * slot] = a;
+        mArgs[3 * slot + 1] = b;
+        mArgs[3 * slot + 2] = c;
+        mRefs[slot] = ref;
+        mQueue.publish(ticket);
+        mEnqueued.incrementAndGet();
+        if (mWriterParked.get() && mWriterParked.compareAndSet(true, false)) {
+            LockSupport.unpark(mWriter);
         }
+    }
 
-        try {
-            JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
-            writer.setIndent("  ");
-            writer.beginArray();
-            if (mLogLines.size() < MAX_LOG_LINES) {
-                for (String line : mLogLines) {
-                    writer.value(line);
-                }
-            } else {
-                for (int i = mLogIndex; i < mLogLines.size(); i++) {
-                    writer.value(mLogLines.get(i));
-                }
-                for (int i = 0; i < mLogIndex; i++) {
-                    writer.value(mLogLines.get(i));
+    private void runWriter() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        open();
+        while (true) {
+            long ticket = mQueue.poll();
+            if (ticket < 0) {
+                mWriterParked.set(true);
+                // Recheck after announcing, or an event queued in between would be missed.
+                if (mQueue.isEmpty()) {
+                    LockSupport.park(this);
                 }
+                mWriterParked.set(false);
+                continue;
             }
-            writer.endArray();
-            writer.close();
-        } catch (IOException ignored) {}
 
-        if (observer != null) {
-            observer.onLogWritten(getLogLines());
-        }
-    }
+            DebugLogWriteObserver o = observer;
+            Executor executor = observerExecutor;
+            List<String> lines = o != null && executor != null ? new ArrayList<>() : null;
+            long first = nextSequence();
+            int written = 0;
+            do {
+                int slot = mQueue.slot(ticket);
+                encode(mTypes[slot], mTimes[slot], mArgs[3 * slot], mArgs[3 * slot + 1],
+                        mArgs[3 * slot + 2], mRefs[slot], lines);
+                mRefs[slot] = null;
+                mQueue.release(ticket);
+                written++;
+            } while (written < MAX_BATCH_LINES && (ticket = mQueue.poll()) >= 0);
+            long dropped = mDropped.getAndSet(0);
+            if (dropped > 0) {
+                encode(DebugLogRecords.QUEUE_OVERFLOW, System.currentTimeMillis(),
+                        (int) Math.min(dropped, Integer.MAX_VALUE), 0, 0, null, lines);
+            }
+            RingLog log = mLog;
+            if (log != null) {
+                log.force();
+            }
+            mCommitted += written;
+            synchronized (mFlushLock) {
+                mFlushLock.notifyAll();
+            }
 
-    private String timestamp() {
-        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("America/Los_Angeles"));
-        return String.format(Locale.getDefault(), "%4d-%02d-%02d %02d:%02d:%02d: ",
-                c.get(Calendar.YEAR),
-                c.get(Calendar.MONTH) + 1,
-                c.get(Calendar.DATE),
-                c.get(Calendar.HOUR_OF_DAY),
-                c.get(Calendar.MINUTE),
-                c.get(Calendar.SECOND));
+            if (lines != null && !lines.isEmpty()) {
+                long oldest = firstSequence();
+                executor.execute(() -> o.onLogAppended(first, lines, oldest));
+            }
+        }
     }
 
-    private synchronized void addLogLine(String line) {
-        if (mLogLines.size() < MAX_LOG_LINES) {
-            mLogLines.add(line);
-        } else {
-            mLogLines.set(mLogIndex, line);
+    /**
+     * Encodes an event and appends it to storage.  Writer thread only.
+     * @param lines if not null, gets the event rendered as text
+     */
+    private void encode(byte type, long millis, int a, int b, int c, @Nullable Object ref,
+                        @Nullable List<String> lines) {
+        RingLog log = mLog;
+        StringDictionary dictionary = mDictionary;
+        if (log == null || dictionary == null) {
+            return;
         }
-        mLogIndex = (mLogIndex + 1) % MAX_LOG_LINES;
-        write();
+        ByteBuffer r = mRecord;
+        r.clear();
+        r.put(type).putLong(millis);
+        switch (type) {
+            case DebugLogRecords.GEOFENCE: {
+                r.put((byte) a);
+                int countPos = r.position();
+                r.put((byte) 0);
+                int count = 0;
+                if (ref != null) {
+                    @SuppressWarnings("unchecked")
+                    List<com.google.android.gms.location.Geofence> geofences =
+                            (List<com.google.android.gms.location.Geofence>) ref;
+                    for (com.google.android.gms.location.Geofence g : geofences) {
+                        if (count == DebugLogRecords.MAX_GEOFENCE_IDS) {
+                            break;
+                        }
+                        r.putInt(dictionary.intern(g.getRequestId()));
+                        count++;
+                    }
+                }
+                r.put(countPos, (byte) count);
+                break;
+            }
+            case DebugLogRecords.LOCATION:
+                r.putInt(a).putInt(b).putShort((short) Math.min(c, 0xffff));
+                break;
+            case DebugLogRecords.FIXES_REJECTED:
+                r.putShort((short) Math.min(a, 0xffff)).putShort((short) Math.min(b, 0xffff));
+                break;
+            case DebugLogRecords.QUEUE_OVERFLOW:
+                r.putInt(a);
+                break;
+        }
+        r.flip();
+        if (lines != null) {
+            lines.add(DebugLogRecords.render(r.duplicate(), dictionary, mWriterCalendar));
+        }
+        log.append(r);
     }
 
     void logServiceStarted() {
-        addLogLine(timestamp() + "service started");
+        addEvent(DebugLogRecords.SERVICE_STARTED, 0, 0, 0, null);
     }
 
     void logServiceStopped() {
-        addLogLine(timestamp() + "service stopped");
+        addEvent(DebugLogRecords.SERVICE_STOPPED, 0, 0, 0, null);
     }
 
     void logGeofencingEvent(GeofencingEvent e) {
-        int geofenceTransition = e.getGeofenceTransition();
-        StringBuilder log = new StringBuilder(timestamp());
-        log.append("geofence");
-        if (geofenceTransition == GEOFENCE_TRANSITION_ENTER) {
-            log.append(" enter");
-        } else if (geofenceTransition == GEOFENCE_TRANSITION_EXIT) {
-            log.append(" exit");
-        } else if (geofenceTransition == GEOFENCE_TRANSITION_DWELL) {
-            log.append(" dwell");
-        }
-        List<com.google.android.gms.location.Geofence> triggeringGeofences =
-                e.getTriggeringGeofences();
-        if (triggeringGeofences != null) {
-            for (com.google.android.gms.location.Geofence g : triggeringGeofences) {
-                log.append(' ');
-                log.append(g.getRequestId());
-            }
-        }
-
-        addLogLine(log.toString());
+        addEvent(DebugLogRecords.GEOFENCE, e.getGeofenceTransition(), 0, 0,
+                e.getTriggeringGeofences());
     }
 
     void logLocationUpdated(LocationResult result) {
         android.location.Location lastLocation = result.getLastLocation();
         if (lastLocation != null) {
-            addLogLine(timestamp() +
-                    String.format(Locale.getDefault(), "location %3.8f %3.8f",
-                            result.getLastLocation().getLatitude(),
-                            result.getLastLocation().getLongitude()));
+            addEvent(DebugLogRecords.LOCATION,
+                    DebugLogRecords.toE7(lastLocation.getLatitude()),
+                    DebugLogRecords.toE7(lastLocation.getLongitude()),
+                    result.getLocations().size(), null);
         }
     }
 
+    void logFixesRejected(int rejected, int total) {
+        addEvent(DebugLogRecords.FIXES_REJECTED, rejected, total, 0, null);
+    }
+
+    void logLocationQueued() {
+        addEvent(DebugLogRecords.LOCATION_QUEUED, 0, 0, 0, null);
+    }
+
     void logDbWrite() {
-        addLogLine(timestamp() + "updated location in firebase");
+        addEvent(DebugLogRecords.DB_WRITE, 0, 0, 0, null);
+    }
+
+    void logDbWriteSkipped() {
+        addEvent(DebugLogRecords.DB_WRITE_SKIPPED, 0, 0, 0, null);
     }
 }
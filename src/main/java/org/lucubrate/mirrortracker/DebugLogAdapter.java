@@ -0,0 +1,145 @@
+package org.lucubrate.mirrortracker;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows {@link DebugLog} lines, newest first, in a RecyclerView.
+ * <p>
+ * Lines are read from the log as they're scrolled into view, so only visible lines are ever
+ * rendered.  Appends arrive as deltas and are applied as item range changes, so the cost of a log
+ * write doesn't grow with the log.  The most recently appended lines are cached, as they're the
+ * ones on screen.
+ * <p>
+ * Until the log has lines, placeholder lines, e.g. from a {@link UiSnapshot}, are shown instead.
+ */
+final class DebugLogAdapter extends RecyclerView.Adapter<DebugLogAdapter.LineHolder>
+        implements DebugLogWriteObserver {
+    final private static int RECENT_LINES = 256;
+
+    @Nullable private DebugLog mLog;
+    // Sequence numbers of the oldest line shown, and one past the newest.
+    private long mFirst;
+    private long mNext;
+    private final String[] mRecent = new String[RECENT_LINES];
+    private final long[] mRecentSequences = new long[RECENT_LINES];
+    // Newest first.
+    private List<String> mPlaceholder = Collections.emptyList();
+
+    DebugLogAdapter() {
+        Arrays.fill(mRecentSequences, -1);
+    }
+
+    /** Shows the lines in log, or none if null. */
+    void setLog(@Nullable DebugLog log) {
+        mLog = log;
+        mFirst = log != null ? log.firstSequence() : 0;
+        mNext = log != null ? log.nextSequence() : 0;
+        if (mNext > mFirst) {
+            mPlaceholder = Collections.emptyList();
+        }
+        notifyDataSetChanged();
+    }
+
+    /** Shows lines, newest first, until the log has lines. */
+    void setPlaceholder(List<String> lines) {
+        mPlaceholder = lines;
+        if (mNext == mFirst) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /** @return up to n of the newest lines shown, newest first */
+    List<String> newestLines(int n) {
+        if (mNext == mFirst) {
+            return new ArrayList<>(mPlaceholder.subList(0, Math.min(n, mPlaceholder.size())));
+        }
+        List<String> lines = new ArrayList<>(n);
+        for (int i = 0; i < n && i < getItemCount(); i++) {
+            String line = getLine(mNext - 1 - i);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public void onLogAppended(long firstSequence, List<String> lines, long oldestSequence) {
+        if (mLog == null) {
+            return;
+        }
+        long next = firstSequence + lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            cache(firstSequence + i, lines.get(i));
+        }
+        if (firstSequence != mNext || oldestSequence > firstSequence || mNext == mFirst) {
+            // Missed a delta, or replacing placeholders; start over from the log.
+            setLog(mLog);
+            return;
+        }
+        int count = getItemCount();
+        int evicted = (int) Math.min(Math.max(0, oldestSequence - mFirst), count);
+        if (evicted > 0) {
+            mFirst += evicted;
+            notifyItemRangeRemoved(count - evicted, evicted);
+        }
+        mNext = next;
+        notifyItemRangeInserted(0, lines.size());
+    }
+
+    @Override
+    public int getItemCount() {
+        return mNext == mFirst ? mPlaceholder.size() : (int) (mNext - mFirst);
+    }
+
+    @NonNull
+    @Override
+    public LineHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View v = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.debug_log_line, parent, false);
+        return new LineHolder(v);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LineHolder holder, int position) {
+        String line = mNext == mFirst ? mPlaceholder.get(position) : getLine(mNext - 1 - position);
+        holder.mText.setText(line != null ? line : "");
+    }
+
+    @Nullable
+    private String getLine(long sequence) {
+        int i = (int) (sequence % RECENT_LINES);
+        String line = mRecentSequences[i] == sequence ? mRecent[i] : null;
+        if (line == null && mLog != null) {
+            line = mLog.getLine(sequence);
+        }
+        return line;
+    }
+
+    private void cache(long sequence, String line) {
+        int i = (int) (sequence % RECENT_LINES);
+        mRecentSequences[i] = sequence;
+        mRecent[i] = line;
+    }
+
+    static class LineHolder extends RecyclerView.ViewHolder {
+        final TextView mText;
+
+        LineHolder(View v) {
+            super(v);
+            mText = (TextView) v;
+        }
+    }
+}
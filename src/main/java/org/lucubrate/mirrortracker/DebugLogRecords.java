@@ -0,0 +1,123 @@
+package org.lucubrate.mirrortracker;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_DWELL;
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
+
+/**
+ * Binary {@link DebugLog} record format, and rendering of records to text.
+ * <p>
+ * Every record starts with a one byte type and the event's epoch millis, followed by type
+ * specific fields.  Coordinates are stored as degrees * 1e7 in an int, and geofence ids as
+ * {@link StringDictionary} ids.
+ */
+final class DebugLogRecords {
+    /** Pre-formatted text line imported from an earlier log format; UTF-8 follows. */
+    static final byte TEXT = 0;
+    static final byte SERVICE_STARTED = 1;
+    static final byte SERVICE_STOPPED = 2;
+    /** Followed by transition byte, id count byte, then int dictionary ids. */
+    static final byte GEOFENCE = 3;
+    /** Followed by int lat e7, int lng e7, short fix count. */
+    static final byte LOCATION = 4;
+    /** Followed by short rejected count, short total count. */
+    static final byte FIXES_REJECTED = 5;
+    static final byte LOCATION_QUEUED = 6;
+    static final byte DB_WRITE = 7;
+    static final byte DB_WRITE_SKIPPED = 8;
+    /** Followed by int count of lines dropped because the log queue was full. */
+    static final byte QUEUE_OVERFLOW = 9;
+
+    /** Largest encoded record. */
+    static final int MAX_RECORD_BYTES = 256;
+    /** Most geofence ids kept per record, so records fit in {@link #MAX_RECORD_BYTES}. */
+    static final int MAX_GEOFENCE_IDS = 60;
+
+    private DebugLogRecords() {}
+
+    /** @return degrees as fixed point degrees * 1e7 */
+    static int toE7(double degrees) {
+        return (int) Math.round(degrees * 1e7);
+    }
+
+    /**
+     * Renders record to a human-readable line.
+     * @param calendar reused to format timestamps
+     */
+    static String render(ByteBuffer record, StringDictionary dictionary, Calendar calendar) {
+        try {
+            byte type = record.get();
+            long millis = record.getLong();
+            if (type == TEXT) {
+                byte[] text = new byte[record.remaining()];
+                record.get(text);
+                return new String(text, StandardCharsets.UTF_8);
+            }
+            StringBuilder line = new StringBuilder(timestamp(calendar, millis));
+            switch (type) {
+                case SERVICE_STARTED:
+                    return line.append("service started").toString();
+                case SERVICE_STOPPED:
+                    return line.append("service stopped").toString();
+                case GEOFENCE: {
+                    line.append("geofence");
+                    int transition = record.get();
+                    if (transition == GEOFENCE_TRANSITION_ENTER) {
+                        line.append(" enter");
+                    } else if (transition == GEOFENCE_TRANSITION_EXIT) {
+                        line.append(" exit");
+                    } else if (transition == GEOFENCE_TRANSITION_DWELL) {
+                        line.append(" dwell");
+                    }
+                    int count = record.get() & 0xff;
+                    for (int i = 0; i < count; i++) {
+                        String id = dictionary.lookup(record.getInt());
+                        line.append(' ').append(id == null ? "?" : id);
+                    }
+                    return line.toString();
+                }
+                case LOCATION:
+                    return line.append(String.format(Locale.getDefault(),
+                            "location %3.7f %3.7f (%d fixes)",
+                            record.getInt() / 1e7, record.getInt() / 1e7,
+                            record.getShort() & 0xffff)).toString();
+                case FIXES_REJECTED:
+                    return line.append(String.format(Locale.getDefault(),
+                            "rejected %d of %d fixes",
+                            record.getShort() & 0xffff, record.getShort() & 0xffff)).toString();
+                case LOCATION_QUEUED:
+                    return line.append("network unavailable; queued location").toString();
+                case DB_WRITE:
+                    return line.append("updated location in firebase").toString();
+                case DB_WRITE_SKIPPED:
+                    return line.append("location unchanged; skipped firebase write").toString();
+                case QUEUE_OVERFLOW:
+                    return line.append("log queue full; dropped ").append(record.getInt())
+                            .append(" lines").toString();
+                default:
+                    return line.append("unknown record type ").append(type).toString();
+            }
+        } catch (BufferUnderflowException e) {
+            return "truncated record";
+        }
+    }
+
+    private static String timestamp(Calendar c, long millis) {
+        c.setTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+        c.setTimeInMillis(millis);
+        return String.format(Locale.getDefault(), "%4d-%02d-%02d %02d:%02d:%02d: ",
+                c.get(Calendar.YEAR),
+                c.get(Calendar.MONTH) + 1,
+                c.get(Calendar.DATE),
+                c.get(Calendar.HOUR_OF_DAY),
+                c.get(Calendar.MINUTE),
+                c.get(Calendar.SECOND));
+    }
+}
@@ -6,5 +6,12 @@ import java.util.List;
  * Class that observes writes to DebugLog.
  */
 interface DebugLogWriteObserver {
-    void onLogWritten(List<String> logLines);
+    /**
+     * Called after lines are appended to the log.
+     * @param firstSequence sequence number of the first of lines; the rest follow consecutively
+     * @param lines appended lines, oldest first
+     * @param oldestSequence sequence number of the oldest line still in the log, as older ones
+     *                       are evicted to make room
+     */
+    void onLogAppended(long firstSequence, List<String> lines, long oldestSequence);
 }
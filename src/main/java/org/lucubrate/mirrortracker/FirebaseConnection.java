@@ -0,0 +1,117 @@
+package org.lucubrate.mirrortracker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.database.DatabaseReference;
+
+/**
+ * Keeps the realtime db connection open only while something needs it.
+ * <p>
+ * The db is taken offline when this is created.  Each user of the connection holds a
+ * {@link Lease}: writes lease it until acknowledged, and {@link SignedInActivity} while bound, so
+ * that config listeners sync while it's shown.  When the last lease is released the connection
+ * lingers for {@link #LINGER_MS}, so that writes close together share one online window and
+ * listener updates triggered by a write arrive, then goes offline.  Writes made offline stay in
+ * the db's persistent cache and are sent in the next window.
+ * <p>
+ * A write whose lease expires before it's acknowledged may have its acknowledgement delayed until
+ * the next window, so lease holders can ask to be told of expiry and treat the write as failed.
+ */
+final class FirebaseConnection {
+    private static final String TAG = "FirebaseConnection";
+    final private static long LINGER_MS = 5 * 1000;
+    /** Longest a write holds the connection open waiting for its acknowledgement. */
+    final static long WRITE_WINDOW_MS = 60 * 1000;
+
+    /** Claim on the connection.  Release exactly once; further releases are ignored. */
+    final class Lease {
+        private final String mReason;
+        private boolean mReleased;
+        private final Runnable mExpire;
+
+        private Lease(String reason, @Nullable Runnable onExpired) {
+            mReason = reason;
+            mExpire = () -> {
+                Log.w(TAG, mReason + " lease expired");
+                release();
+                if (onExpired != null) {
+                    onExpired.run();
+                }
+            };
+        }
+
+        void release() {
+            synchronized (FirebaseConnection.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                mHandler.removeCallbacks(mExpire);
+                if (--mLeases == 0) {
+                    mHandler.postDelayed(mGoOffline, LINGER_MS);
+                }
+            }
+        }
+    }
+
+    private static FirebaseConnection mConnection;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mGoOffline = this::goOfflineIfIdle;
+    private int mLeases;
+    private boolean mOnline;
+
+    /**
+     * Gets singleton instance of FirebaseConnection.  Must not be called before db persistence
+     * is configured, as it's the first use of the db.
+     */
+    static synchronized FirebaseConnection getInstance() {
+        if (mConnection == null) {
+            mConnection = new FirebaseConnection();
+        }
+        return mConnection;
+    }
+
+    private FirebaseConnection() {
+        DatabaseReference.goOffline();
+    }
+
+    /**
+     * Brings the connection online, if it isn't, until the returned lease is released.
+     * @param reason for logging
+     * @param maxMillis after which the lease is released if it hasn't been, or 0 for no limit
+     */
+    synchronized Lease acquire(String reason, long maxMillis) {
+        return acquire(reason, maxMillis, null);
+    }
+
+    /**
+     * Like {@link #acquire(String, long)}, but runs onExpired on the main thread if the lease
+     * expires before it's released.
+     */
+    synchronized Lease acquire(String reason, long maxMillis, @Nullable Runnable onExpired) {
+        Lease lease = new Lease(reason, onExpired);
+        mLeases++;
+        mHandler.removeCallbacks(mGoOffline);
+        if (!mOnline) {
+            Log.d(TAG, "going online for " + reason);
+            DatabaseReference.goOnline();
+            mOnline = true;
+        }
+        if (maxMillis > 0) {
+            mHandler.postDelayed(lease.mExpire, maxMillis);
+        }
+        return lease;
+    }
+
+    private synchronized void goOfflineIfIdle() {
+        if (mLeases == 0 && mOnline) {
+            Log.d(TAG, "going offline");
+            DatabaseReference.goOffline();
+            mOnline = false;
+        }
+    }
+}
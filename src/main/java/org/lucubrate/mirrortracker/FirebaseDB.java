@@ -1,11 +1,9 @@
 package org.lucubrate.mirrortracker;
 
 import android.content.Context;
-import android.content.Intent;
+import android.content.SharedPreferences;
 import android.location.Address;
 import android.location.Geocoder;
-import android.location.Location;
-import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
@@ -18,18 +16,28 @@ import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.GenericTypeIndicator;
 import com.google.firebase.database.ValueEventListener;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
 
 /**
  * Firebase realtime database data binding.
  */
 class FirebaseDB  {
     final private static String TAG = "FirebaseDB";
+    /** Number of track points and transitions kept in the db; older ones are overwritten. */
+    final private static int TRACK_SLOTS = 1000;
+    final private static int TRANSITION_SLOTS = 500;
 
     private final DatabaseReference showPrivateInfo;
-    private final DatabaseReference memo;
-    private boolean memoReadOnce;
+    private final MemoSync memo;
     private final DatabaseReference user;
     private static boolean hasSetPersistence = false;
 
@@ -43,7 +51,8 @@ class FirebaseDB  {
      * @param service if available, LocationService to which DB updates will be posted
      * @return singleton FirebaseDB instance
      */
-    static FirebaseDB getInstance(@NonNull String uid, @Nullable LocationService service) {
+    static synchronized FirebaseDB getInstance(@NonNull String uid,
+                                               @Nullable LocationService service) {
         if (db == null) {
             db = new FirebaseDB(uid, service);
         }
@@ -58,6 +67,8 @@ class FirebaseDB  {
             hasSetPersistence = true;
             db.setPersistenceEnabled(true);
         }
+        // Takes the db offline until something needs the connection.
+        FirebaseConnection.getInstance();
 
         mService = service;
 
@@ -77,29 +88,9 @@ class FirebaseDB  {
             }
         });
 
-        memoReadOnce = false;
-        memo = db.getReference("mirror/memo");
-        memo.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                if (memoReadOnce) {
-                    return;
-                }
-                if (mService != null) {
-                    String memoValue  = snapshot.getValue(String.class);
-                    if (memoValue != null) {
-                        // Only grab value from database once (for initial display) to avoid
-                        // clobbering text typed in by user during the spans between db write and
-                        // change/read.
-                        memoReadOnce = true;
-                    }
-                    mService.onMemoUpdated(memoValue == null ? "" : memoValue);
-                }
-            }
-
-            @Override
-            public void onCancelled(@NonNull DatabaseError error) {
-                Log.w(TAG, "Failed to read value.", error.toException());
+        memo = new MemoSync(db.getReference("mirror/memo"), m -> {
+            if (mService != null) {
+                mService.onMemoUpdated(m);
             }
         });
 
@@ -109,8 +100,13 @@ class FirebaseDB  {
             public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                 GenericTypeIndicator<List<Geofence>> t =
                         new GenericTypeIndicator<List<Geofence>>() {};
+                List<Geofence> fences = dataSnapshot.getValue(t);
+                // Indexed here rather than in LocationService so that receivers can label
+                // locations even when the service isn't running.
+                GeofenceIndex.getInstance().setGeofences(
+                        fences == null ? Collections.emptyList() : fences);
                 if (mService != null) {
-                    mService.onGeofencesUpdated(dataSnapshot.getValue(t));
+                    mService.onGeofencesUpdated(fences);
                 }
             }
 
@@ -130,65 +126,320 @@ class FirebaseDB  {
         mService = service;
     }
 
-    /** Updates current user location. */
-    void updateLocation(Context context, Location location) {
+    /** Receives the outcome of a location write. */
+    interface WriteCallback {
+        /**
+         * @param committed whether the updates were acknowledged by the db, or found not to need
+         *                  writing.  False if they were queued for later or dropped.
+         */
+        void onWriteFinished(boolean committed);
+    }
+
+    /**
+     * Sends a time-ordered batch of updates to the db, after merging it with any near-simultaneous
+     * updates from the other receiver; see {@link LocationDeduplicator}.
+     */
+    void submitLocations(Context context, List<LocationUpdate> batch, WriteCallback callback) {
+        Context appContext = context.getApplicationContext();
+        LocationDeduplicator.getInstance().offer(batch, callback,
+                (updates, merged) -> sendLocations(appContext, updates, merged));
+    }
+
+    /**
+     * Sends a time-ordered batch of updates to the db, or queues them in {@link OutboundQueue} if
+     * the network is unavailable.  Any previously queued updates are flushed in the same write.
+     */
+    private void sendLocations(Context context, List<LocationUpdate> batch,
+                               WriteCallback callback) {
+        OutboundQueue queue = OutboundQueue.getInstance(context.getFilesDir());
+        if (NetworkCheck.isNetworkUnavailable(context)) {
+            Log.d(TAG, "network unavailable; queueing location update");
+            for (LocationUpdate u : batch) {
+                queue.append(u);
+            }
+            DebugLog.getInstance(context.getFilesDir()).logLocationQueued();
+            callback.onWriteFinished(false);
+            return;
+        }
+        if (queue.isEmpty()) {
+            updateLocations(context, batch, callback);
+            return;
+        }
+        for (LocationUpdate u : batch) {
+            queue.append(u);
+        }
+        flushQueue(context, callback);
+    }
+
+    /** Sends any queued location updates to the db in a single batched write. */
+    void flushQueue(Context context) {
+        flushQueue(context, committed -> {});
+    }
+
+    private void flushQueue(Context context, WriteCallback callback) {
+        OutboundQueue queue = OutboundQueue.getInstance(context.getFilesDir());
+        if (queue.isEmpty() || NetworkCheck.isNetworkUnavailable(context)) {
+            callback.onWriteFinished(false);
+            return;
+        }
+        List<LocationUpdate> updates = queue.drain();
+        if (updates == null) {
+            // Whatever was queued meanwhile is sent once the flush in flight finishes.
+            Log.d(TAG, "flush already in flight");
+            callback.onWriteFinished(false);
+            return;
+        }
+        Log.d(TAG, "flushing " + updates.size() + " queued location updates");
+        updateLocations(context, updates, committed -> {
+            if (!committed) {
+                queue.abort();
+                callback.onWriteFinished(false);
+                return;
+            }
+            queue.commit();
+            callback.onWriteFinished(true);
+            if (!queue.isEmpty()) {
+                flushQueue(context);
+            }
+        });
+    }
+
+    /** Geocodes the newest update and any geofence transitions, then writes updates to the db. */
+    private void updateLocations(Context context, List<LocationUpdate> updates,
+                                 WriteCallback callback) {
         Log.d(TAG, "updating location");
+        if (updates.isEmpty()) {
+            callback.onWriteFinished(false);
+            return;
+        }
+
+        LocationUpdate newest = updates.get(0);
+        for (LocationUpdate u : updates) {
+            if (u.time >= newest.time) {
+                newest = u;
+            }
+        }
+        List<Integer> toGeocode = new ArrayList<>();
+        for (int i = 0; i < updates.size(); i++) {
+            if (updates.get(i).isTransition() || updates.get(i) == newest) {
+                toGeocode.add(i);
+            }
+        }
+
+        Place[] places = new Place[updates.size()];
+        AtomicInteger remaining = new AtomicInteger(toGeocode.size());
+        for (int index : toGeocode) {
+            LocationUpdate u = updates.get(index);
+            geocode(context, u.lat, u.lng, place -> {
+                if (place == null) {
+                    Log.e(TAG, "unable to geocode location");
+                }
+                places[index] = place;
+                if (remaining.decrementAndGet() == 0) {
+                    writeLocations(context, updates, places, callback);
+                }
+            });
+        }
+    }
+
+    /** Receives the result of a reverse geocode. */
+    private interface GeocodeCallback {
+        /** @param place resolved place, or null if the location couldn't be resolved */
+        void onGeocoded(@Nullable Place place);
+    }
+
+    /**
+     * Reverse geocodes lat/lng, from {@link GeocodeCache} if possible.  callback may be invoked
+     * synchronously (for cache hits) or on a geocoder thread.
+     */
+    private static void geocode(Context context, double lat, double lng,
+                                GeocodeCallback callback) {
+        GeocodeCache cache = GeocodeCache.getInstance(context.getFilesDir());
+        Place cached = cache.get(lat, lng);
+        if (cached != null) {
+            Log.d(TAG, "geocode cache hit; " + cache.hits() + " hits, " + cache.misses() +
+                    " misses");
+            callback.onGeocoded(cached);
+            return;
+        }
 
         Geocoder geocoder = new Geocoder(context, Locale.getDefault());
         try {
             geocoder.getFromLocation(
-                    location.getLatitude(),
-                    location.getLongitude(),
+                    lat,
+                    lng,
                     1 /* only need one address, since just getting city/state/country */,
-                    addresses -> {
-                        if (addresses.size() == 0) {
-                            Log.e(TAG, "no address found");
-                            return;
+                    new Geocoder.GeocodeListener() {
+                        @Override
+                        public void onGeocode(@NonNull List<Address> addresses) {
+                            if (addresses.size() == 0) {
+                                Log.e(TAG, "no address found");
+                                callback.onGeocoded(null);
+                                return;
+                            }
+                            Place place = Place.fromAddress(addresses.get(0));
+                            cache.put(lat, lng, place);
+                            callback.onGeocoded(place);
                         }
 
-                        Log.d(TAG, "syncing geocoded location to db");
-                        Address address = addresses.get(0);
-                        LocationEvent ev = new LocationEvent(
-                                location.getTime(), address.getLocality(), address.getAdminArea(),
-                                address.getCountryName(), location.getLatitude(),
-                                location.getLongitude(), "");
-
-                        DatabaseReference.goOnline();
-                        user.child("location").setValue(ev);
-                        Log.i(TAG, "updated location in firebase");
-
-                        // If LocationService is running, notify it of updated location so it can update its state
-                        // and/or bound Activity.  We can't just start the service here due to Android O+ background
-                        // service limitations.
-                        if (LocationService.started) {
-                            Intent i = new Intent(context.getApplicationContext(), LocationService.class);
-                            Bundle bundle = new Bundle();
-                            bundle.putParcelable(LocationService.RESULT_DATA_KEY, address);
-                            bundle.putParcelable(LocationService.LOCATION_DATA_EXTRA, location);
-                            i.putExtras(bundle);
-
-                            context.startService(i);
+                        @Override
+                        public void onError(@Nullable String errorMessage) {
+                            Log.e(TAG, "geocoder error: " + errorMessage);
+                            callback.onGeocoded(null);
                         }
-
-                        DebugLog.getInstance(context.getFilesDir()).logDbWrite();
                     });
         } catch (IllegalArgumentException illegalArgumentException) {
             Log.e(TAG, "invalid lat/long. " +
-                    "Latitude = " + location.getLatitude() +
-                    ", Longitude = " +
-                    location.getLongitude(), illegalArgumentException);
+                    "Latitude = " + lat +
+                    ", Longitude = " + lng, illegalArgumentException);
+            callback.onGeocoded(null);
         }
     }
 
+    /**
+     * Writes updates to the db in one multi-path update: the newest geocoded update becomes the
+     * user's location, geofence transitions are recorded under transitions/, and batches of fused
+     * fixes are recorded as raw points under track/.  transitions/ and track/ are rings of
+     * {@link #TRANSITION_SLOTS} and {@link #TRACK_SLOTS} slots, so only the newest are kept.
+     */
+    private void writeLocations(Context context, List<LocationUpdate> updates, Place[] places,
+                                WriteCallback callback) {
+        Log.d(TAG, "syncing geocoded location to db");
+        Map<String, Object> children = new HashMap<>();
+        int fusedCount = 0;
+        int transitionCount = 0;
+        for (int i = 0; i < updates.size(); i++) {
+            LocationUpdate u = updates.get(i);
+            if (u.source == LocationUpdate.SOURCE_FUSED) {
+                fusedCount++;
+            }
+            if (u.isTransition() && places[i] != null) {
+                transitionCount++;
+            }
+        }
+        int trackSlot = fusedCount > 1 ? claimSlots(context,
+                Preferences.NEXT_TRACK_SLOT_PREF_KEY, fusedCount, TRACK_SLOTS) : 0;
+        int transitionSlot = transitionCount > 0 ? claimSlots(context,
+                Preferences.NEXT_TRANSITION_SLOT_PREF_KEY, transitionCount, TRANSITION_SLOTS) : 0;
+        int newest = -1;
+        for (int i = 0; i < updates.size(); i++) {
+            LocationUpdate u = updates.get(i);
+            if (fusedCount > 1 && u.source == LocationUpdate.SOURCE_FUSED) {
+                children.put("track/" + trackSlot, new TrackPoint(u.time, u.lat, u.lng));
+                trackSlot = (trackSlot + 1) % TRACK_SLOTS;
+            }
+            if (places[i] == null) {
+                continue;
+            }
+            if (newest < 0 || u.time >= updates.get(newest).time) {
+                newest = i;
+            }
+            if (u.isTransition()) {
+                TransitionEvent t = new TransitionEvent(toEvent(u, places[i]),
+                        u.transition == GEOFENCE_TRANSITION_ENTER ? "enter" : "exit");
+                t.label = u.label;
+                children.put("transitions/" + transitionSlot, t);
+                transitionSlot = (transitionSlot + 1) % TRANSITION_SLOTS;
+            }
+        }
+        if (newest < 0) {
+            Log.e(TAG, "no geocoded location to write");
+            callback.onWriteFinished(false);
+            return;
+        }
+        LocationUpdate u = updates.get(newest);
+        LocationEvent ev = toEvent(u, places[newest]);
+        LocationWriteFilter filter = LocationWriteFilter.getInstance(context);
+        boolean writeLocation = filter.shouldWrite(ev);
+        if (writeLocation) {
+            children.put("location", ev);
+        } else if (children.isEmpty()) {
+            Log.d(TAG, "location unchanged; skipping db write");
+            DebugLog.getInstance(context.getFilesDir()).logDbWriteSkipped();
+            callback.onWriteFinished(true);
+            return;
+        }
+
+        // The callback is told once: of the acknowledgement, or of failure if the connection's
+        // lease expires first, so that a queue drain is aborted rather than left in flight.
+        AtomicBoolean reported = new AtomicBoolean();
+        FirebaseConnection.Lease lease = FirebaseConnection.getInstance()
+                .acquire("location write", FirebaseConnection.WRITE_WINDOW_MS, () -> {
+                    if (reported.compareAndSet(false, true)) {
+                        callback.onWriteFinished(false);
+                    }
+                });
+        user.updateChildren(children, (error, ref) -> {
+            lease.release();
+            if (error != null) {
+                Log.w(TAG, "location write failed", error.toException());
+                if (reported.compareAndSet(false, true)) {
+                    callback.onWriteFinished(false);
+                }
+                return;
+            }
+            if (writeLocation) {
+                filter.onCommitted(ev);
+                // Only once acknowledged, so subscribers never show a location the db lacks.
+                LocationBus.getInstance().publish(ev);
+            }
+            if (reported.compareAndSet(false, true)) {
+                callback.onWriteFinished(true);
+            }
+        });
+        Log.i(TAG, "updated location in firebase");
+        DebugLog.getInstance(context.getFilesDir()).logDbWrite();
+    }
+
+    /**
+     * @param key preference holding the ring's next slot
+     * @return first of count consecutive slots of a ring of size slots, wrapping, reserved for new
+     * entries
+     */
+    private static synchronized int claimSlots(Context context, Preferences key, int count,
+                                               int slots) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+        int first = prefs.getInt(key.val, 0) % slots;
+        prefs.edit().putInt(key.val, (first + count) % slots).apply();
+        return first;
+    }
+
+    /** @return geocoded event for u, labeled with the geofence containing it, if any */
+    private static LocationEvent toEvent(LocationUpdate u, Place place) {
+        String label = GeofenceIndex.getInstance().labelAt(u.lat, u.lng);
+        if (label == null) {
+            // Index may not have loaded yet, but a geofence enter tells us where we are anyway.
+            label = u.transition == GEOFENCE_TRANSITION_ENTER ? u.label : "";
+        }
+        return new LocationEvent(
+                u.time, place.city, place.state, place.country, u.lat, u.lng, label);
+    }
+
     /** Updates whether to show private info on mirror. */
     void updateShowPrivateInfo(boolean show) {
-        showPrivateInfo.setValue(show);
+        setValue(showPrivateInfo, show, "showPrivateInfo write");
     }
 
-    void updateMemo(String memoText) { memo.setValue(memoText); }
+    void updateMemo(String memoText) { memo.edit(memoText); }
+
+    /** Writes any memo edits still waiting for the user to pause typing. */
+    void flushMemo() { memo.flush(); }
 
     /** Updates whether to share location of current user. */
     void updateShareLocation(boolean share) {
-        user.child("shareLocation").setValue(share);
+        setValue(user.child("shareLocation"), share, "shareLocation write");
+    }
+
+    /** Sets ref to value, holding the connection online until the write is acknowledged. */
+    private static void setValue(DatabaseReference ref, Object value, String reason) {
+        FirebaseConnection.Lease lease = FirebaseConnection.getInstance()
+                .acquire(reason, FirebaseConnection.WRITE_WINDOW_MS);
+        ref.setValue(value).addOnCompleteListener(task -> {
+            lease.release();
+            if (!task.isSuccessful()) {
+                Log.w(TAG, reason + " failed", task.getException());
+            }
+        });
     }
 }
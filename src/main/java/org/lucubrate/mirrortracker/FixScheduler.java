@@ -0,0 +1,249 @@
+package org.lucubrate.mirrortracker;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
+import static com.google.android.gms.location.Geofence.NEVER_EXPIRE;
+
+/**
+ * Chooses the fused location request according to how soon a geofence transition could happen.
+ * <p>
+ * On each batch of fixes, the distance to the nearest geofence boundary is divided by the recent
+ * speed to estimate the time until a transition.  Far from any boundary, fixes are requested
+ * rarely and at low power; close to one, often and at high accuracy.  Without a measured speed
+ * there's no estimate, and the NORMAL tier is used.  The request is only reissued when the tier
+ * changes.  The tier is persisted to shared preferences, since fixes arrive in short-lived
+ * broadcasts.
+ * <p>
+ * When {@link MotionStateMachine} finds the device stationary, fused updates are removed entirely
+ * in favor of a single exit geofence around the current spot.  {@link GeofenceReceiver} calls
+ * {@link #onStationaryFenceExited()} when it fires, which restores fused updates.
+ */
+final class FixScheduler {
+    private static final String TAG = "FixScheduler";
+
+    /** Request id of the geofence registered while stationary. */
+    static final String STATIONARY_FENCE_ID = Geofence.INTERNAL_LABEL_PREFIX + "stationary";
+
+    /** Fused location request settings. */
+    enum Tier {
+        /** No fused updates; waiting for the stationary geofence to be exited. */
+        STATIONARY(0, Priority.PRIORITY_PASSIVE, 0),
+        /** A transition is imminent. */
+        NEAR(60 * 1000, Priority.PRIORITY_HIGH_ACCURACY, 0),
+        /** Default, and used when there's no estimate. */
+        NORMAL(10 * 60 * 1000, Priority.PRIORITY_BALANCED_POWER_ACCURACY, 20 * 60 * 1000),
+        /** No transition is likely for a long while. */
+        FAR(30 * 60 * 1000, Priority.PRIORITY_LOW_POWER, 2 * 60 * 60 * 1000);
+
+        final long intervalMs;
+        final int priority;
+        /** How long fixes may be batched before waking the app. */
+        final long maxDelayMs;
+
+        Tier(long intervalMs, int priority, long maxDelayMs) {
+            this.intervalMs = intervalMs;
+            this.priority = priority;
+            this.maxDelayMs = maxDelayMs;
+        }
+    }
+
+    /** Estimated times to a transition below which the NEAR and NORMAL tiers apply. */
+    final private static long NEAR_ETA_MS = 5 * 60 * 1000;
+    final private static long NORMAL_ETA_MS = 60 * 60 * 1000;
+    /** Speeds below this are indistinguishable from standing still, so give no estimate. */
+    final private static double MIN_SPEED_MPS = 0.2;
+    /** Stationary geofence radius floor, below which GMS geofences become unreliable. */
+    final private static float MIN_STATIONARY_RADIUS_METERS = 150;
+
+    private static FixScheduler mScheduler;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    /** Gets singleton instance of FixScheduler. */
+    static synchronized FixScheduler getInstance(Context context) {
+        if (mScheduler == null) {
+            mScheduler = new FixScheduler(context.getApplicationContext());
+        }
+        return mScheduler;
+    }
+
+    private FixScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+    }
+
+    /** Starts fused location updates at the last chosen tier. */
+    synchronized void start() {
+        Tier tier = currentTier();
+        if (tier == Tier.STATIONARY) {
+            // The stationary geofence may not have survived whatever restarted tracking (e.g. a
+            // reboot), so fall back to fused updates until stillness is detected again.
+            removeStationaryFence();
+            MotionStateMachine.getInstance(mContext).reset();
+            tier = Tier.NORMAL;
+        }
+        request(tier);
+    }
+
+    /** Stops fused location updates. */
+    synchronized void stop() {
+        if (currentTier() == Tier.STATIONARY) {
+            removeStationaryFence();
+        }
+        mPrefs.edit().remove(Preferences.FIX_TIER_PREF_KEY.val).apply();
+        client().removeLocationUpdates(FusedLocationReceiver.getPendingIntent(mContext));
+    }
+
+    /** Restores fused location updates once the device moves away from where it was stationary. */
+    synchronized void onStationaryFenceExited() {
+        if (currentTier() != Tier.STATIONARY) {
+            return;
+        }
+        Log.i(TAG, "movement resumed");
+        MotionStateMachine.getInstance(mContext).reset();
+        removeStationaryFence();
+        request(Tier.NORMAL);
+    }
+
+    /**
+     * Reissues the location request if updates call for a different tier.  Does nothing while
+     * stopped.
+     * @param updates time-ordered location updates
+     */
+    synchronized void onUpdates(List<LocationUpdate> updates) {
+        if (updates.isEmpty() || !mPrefs.contains(Preferences.FIX_TIER_PREF_KEY.val)) {
+            return;
+        }
+        Tier current = currentTier();
+        if (current == Tier.STATIONARY) {
+            // Only geofence broadcasts arrive while stationary; the stationary fence decides when
+            // to resume.
+            return;
+        }
+        // Fed with the uncompressed fixes by FusedLocationReceiver.
+        MotionStateMachine motion = MotionStateMachine.getInstance(mContext);
+        LocationUpdate newest = updates.get(updates.size() - 1);
+        if (motion.state() == MotionStateMachine.State.STATIONARY) {
+            suspend(newest);
+            return;
+        }
+        double speed = motion.speed();
+
+        GeofenceIndex index = GeofenceIndex.getInstance();
+        if (!index.isLoaded()) {
+            return;
+        }
+        double distance = index.nearestBoundaryDistance(newest.lat, newest.lng);
+        Tier tier;
+        if (speed < MIN_SPEED_MPS) {
+            // A still device near a boundary would otherwise be kept at NEAR indefinitely.
+            tier = Tier.NORMAL;
+        } else {
+            double etaMs = distance / speed * 1000;
+            tier = etaMs < NEAR_ETA_MS ? Tier.NEAR :
+                    etaMs < NORMAL_ETA_MS ? Tier.NORMAL : Tier.FAR;
+        }
+        Log.d(TAG, String.format(Locale.getDefault(), "boundary %.0fm, speed %.1fm/s -> %s",
+                distance, speed, tier));
+        if (tier != current) {
+            request(tier);
+        }
+    }
+
+    /** Swaps fused updates for a geofence around newest. */
+    private void suspend(LocationUpdate newest) {
+        if (!hasPermission()) {
+            return;
+        }
+        float radius = Math.max(MIN_STATIONARY_RADIUS_METERS, 2 * newest.accuracy);
+        GeofencingRequest req = new GeofencingRequest.Builder()
+                // Fire straight away if the device already left.
+                .setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_EXIT)
+                .addGeofence(new com.google.android.gms.location.Geofence.Builder()
+                        .setRequestId(STATIONARY_FENCE_ID)
+                        .setCircularRegion(newest.lat, newest.lng, radius)
+                        .setExpirationDuration(NEVER_EXPIRE)
+                        .setTransitionTypes(GEOFENCE_TRANSITION_EXIT)
+                        .build())
+                .build();
+        Log.i(TAG, "stationary; suspending fused location updates");
+        mPrefs.edit().putString(Preferences.FIX_TIER_PREF_KEY.val, Tier.STATIONARY.name()).apply();
+        LocationServices.getGeofencingClient(mContext)
+                .addGeofences(req, GeofenceReceiver.getPendingIntent(mContext))
+                .addOnSuccessListener(aVoid -> client().removeLocationUpdates(
+                        FusedLocationReceiver.getPendingIntent(mContext)))
+                .addOnFailureListener(e -> {
+                    Log.w(TAG, "stationary geofence add failed " + e);
+                    synchronized (this) {
+                        if (currentTier() == Tier.STATIONARY) {
+                            MotionStateMachine.getInstance(mContext).reset();
+                            request(Tier.NORMAL);
+                        }
+                    }
+                });
+    }
+
+    private void removeStationaryFence() {
+        LocationServices.getGeofencingClient(mContext)
+                .removeGeofences(Collections.singletonList(STATIONARY_FENCE_ID));
+    }
+
+    private Tier currentTier() {
+        String name = mPrefs.getString(Preferences.FIX_TIER_PREF_KEY.val, null);
+        if (name != null) {
+            try {
+                return Tier.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "unknown fix tier " + name);
+            }
+        }
+        return Tier.NORMAL;
+    }
+
+    private boolean hasPermission() {
+        if (mContext.getPackageManager().checkPermission(
+                Manifest.permission.ACCESS_FINE_LOCATION, mContext.getPackageName()) !=
+                PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "ACCESS_FINE_LOCATION permission denied");
+            return false;
+        }
+        return true;
+    }
+
+    private void request(Tier tier) {
+        if (!hasPermission()) {
+            return;
+        }
+        Log.i(TAG, "requesting " + tier + " fused location updates");
+        mPrefs.edit().putString(Preferences.FIX_TIER_PREF_KEY.val, tier.name()).apply();
+        // No minimum update distance: MotionStateMachine needs fixes from a device that isn't
+        // moving to find it stationary.
+        LocationRequest req = new LocationRequest.Builder(tier.intervalMs)
+                .setPriority(tier.priority)
+                .setMaxUpdateDelayMillis(tier.maxDelayMs)
+                .build();
+        // Replaces any earlier request for the same PendingIntent.
+        client().requestLocationUpdates(req, FusedLocationReceiver.getPendingIntent(mContext));
+    }
+
+    private FusedLocationProviderClient client() {
+        return LocationServices.getFusedLocationProviderClient(mContext);
+    }
+}
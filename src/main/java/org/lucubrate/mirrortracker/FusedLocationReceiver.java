@@ -1,69 +1,101 @@
 package org.lucubrate.mirrortracker;
 
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
 import android.util.Log;
+import androidx.annotation.Nullable;
 
 import com.google.android.gms.location.LocationAvailability;
 import com.google.android.gms.location.LocationResult;
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.auth.FirebaseUser;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * BroadcastReceiver that processes updates from
  * {@link com.google.android.gms.location.FusedLocationProviderClient}.
  */
-public class FusedLocationReceiver extends BroadcastReceiver {
+public class FusedLocationReceiver extends BroadcastReceiver
+        implements LocationPipeline.Source<LocationResult> {
     private static final String TAG = "FusedLocationReceiver";
 
     // This MUST match action filter for this receiver in the manifest.
     static String LOCATION_INTENT_ACTION = "org.lucubrate.mirrortracker.FUSED_LOCATION";
 
+    // Max distance a batched fix may lie from the simplified track before it's kept.
+    private static final double TRACK_TOLERANCE_METERS = 50;
+
+    /** @return PendingIntent through which fused location updates are delivered here */
+    static PendingIntent getPendingIntent(Context context) {
+        final Intent intent = new Intent();
+        intent.setClass(context, FusedLocationReceiver.class);
+        intent.setAction(LOCATION_INTENT_ACTION);
+        return PendingIntent.getBroadcast(
+                context.getApplicationContext(), 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent == null || !LOCATION_INTENT_ACTION.equals(intent.getAction())) {
             Log.e(TAG, "unexpected intent received");
             return;
         }
+        LocationPipeline.getInstance().process(context, intent, goAsync(), this);
+    }
 
+    @Nullable
+    @Override
+    public LocationResult validate(Intent intent) {
         if (!LocationResult.hasResult(intent)) {
             // FusedLocationProvider currently dispatches separate broadcasts for location and
             // location-availability.  We only care about the former, so silently ignore the latter
             // here.  Code is structured this way so it should continue to function even if
             // FusedLocationProvider merges these broadcasts into a single intent in the future.
             if (LocationAvailability.hasLocationAvailability(intent)) {
-                return;
+                return null;
             }
             Log.e(TAG, "no location result " + intent);
-            return;
+            return null;
         }
         Log.d(TAG, "received fused location intent");
 
-        if (NetworkCheck.isNetworkUnavailable(context)) {
-            Log.d(TAG, "ignoring location evt because we can't ping it to the network now.");
-            return;
-        }
-
         LocationResult result = LocationResult.extractResult(intent);
         if (result == null) {
             Log.e(TAG, "no location result present");
-            return;
         }
+        return result;
+    }
 
-        DebugLog.getInstance(context.getFilesDir()).logLocationUpdated(result);
-        Location loc = result.getLastLocation();
-        if (loc != null) {
-            Log.d(TAG, "sending fused location to db");
-            FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
-            if (u == null) {
-                Log.e(TAG, "no firebase user for which to update location");
-                return;
-            }
-            FirebaseDB.getInstance(u.getUid(), null).updateLocation(context, loc);
-        } else {
-            Log.d(TAG, "location unavailable");
+    @Override
+    public void log(DebugLog log, LocationResult result) {
+        log.logLocationUpdated(result);
+    }
+
+    @Override
+    public List<LocationUpdate> updates(Context context, LocationResult result) {
+        // Fixes are batched by the provider (see LocationService#startTrackingLocation), so
+        // simplify the batch before sending it along.
+        List<Location> locations = result.getLocations();
+        List<LocationUpdate> batch = new ArrayList<>(locations.size());
+        for (Location loc : locations) {
+            batch.add(LocationUpdate.fromFused(loc));
+        }
+        // Filter before simplifying, since a jump would otherwise be kept as a significant point.
+        List<LocationUpdate> accepted = LocationFilter.getInstance(context).filter(batch);
+        if (accepted.size() < batch.size()) {
+            DebugLog.getInstance(context.getFilesDir()).logFixesRejected(
+                    batch.size() - accepted.size(), batch.size());
         }
+        // Motion is judged on every accepted fix, as simplifying drops the ones that show the
+        // device staying put.
+        MotionStateMachine.getInstance(context).update(accepted);
+        List<LocationUpdate> track =
+                TrajectoryCompressor.simplify(accepted, TRACK_TOLERANCE_METERS);
+        Log.d(TAG, "sending " + track.size() + " of " + batch.size() + " fused locations to db");
+        return track;
     }
-}
\ No newline at end of file
+}
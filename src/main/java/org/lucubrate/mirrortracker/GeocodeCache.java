@@ -0,0 +1,212 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reverse geocode cache keyed by geohash cell.
+ * <p>
+ * Entries are evicted in least-recently-used order once {@link #MAX_ENTRIES} is reached, and
+ * expire after {@link #TTL_MS}.  The cache is snapshotted to disk whenever a new entry is added,
+ * so it survives process death between location broadcasts.
+ */
+final class GeocodeCache {
+    private static final String TAG = "GeocodeCache";
+
+    final private static String FILE_NAME = "geocode_cache.bin";
+    final private static int FILE_VERSION = 1;
+    /** Geohash length of cache keys.  A 6 character geohash cell is roughly 1.2km x 0.6km. */
+    final private static int GEOHASH_PRECISION = 6;
+    final private static int MAX_ENTRIES = 256;
+    final private static long TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    private static GeocodeCache mGeocodeCache;
+
+    private final File mCacheFile;
+    // Access-ordered, so iteration runs from least to most recently used.
+    private final LinkedHashMap<String, Entry> mEntries;
+    private int mHits;
+    private int mMisses;
+
+    private static final class Entry {
+        final Place place;
+        final long storedAt;
+
+        Entry(Place place, long storedAt) {
+            this.place = place;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * Gets singleton instance of GeocodeCache.
+     * @param fileDir directory to which the cache snapshot will be written
+     */
+    static synchronized GeocodeCache getInstance(File fileDir) {
+        if (mGeocodeCache == null) {
+            mGeocodeCache = new GeocodeCache(fileDir);
+        }
+        return mGeocodeCache;
+    }
+
+    private GeocodeCache(File fileDir) {
+        mEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        mCacheFile = new File(fileDir, FILE_NAME);
+        read();
+    }
+
+    /**
+     * @return cached place for the geohash cell containing lat/lng, or null if there is no
+     * unexpired entry for that cell
+     */
+    @Nullable
+    synchronized Place get(double lat, double lng) {
+        String key = geohash(lat, lng, GEOHASH_PRECISION);
+        Entry e = mEntries.get(key);
+        if (e != null && System.currentTimeMillis() - e.storedAt > TTL_MS) {
+            mEntries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return e.place;
+    }
+
+    /** Caches place for the geohash cell containing lat/lng. */
+    synchronized void put(double lat, double lng, Place place) {
+        mEntries.put(geohash(lat, lng, GEOHASH_PRECISION),
+                new Entry(place, System.currentTimeMillis()));
+        write();
+    }
+
+    /** @return number of lookups answered from the cache */
+    synchronized int hits() {
+        return mHits;
+    }
+
+    /** @return number of lookups that required a geocoder call */
+    synchronized int misses() {
+        return mMisses;
+    }
+
+    /** Encodes lat/lng as a base32 geohash string of the given length. */
+    static String geohash(double lat, double lng, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (lng >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch <<= 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    private void read() {
+        if (!mCacheFile.canRead() || mCacheFile.length() == 0) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mCacheFile)))) {
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            mHits = in.readInt();
+            mMisses = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long storedAt = in.readLong();
+                Place place = new Place(readNullableString(in), readNullableString(in),
+                        readNullableString(in));
+                mEntries.put(key, new Entry(place, storedAt));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read geocode cache", e);
+        }
+    }
+
+    private void write() {
+        File tmp = new File(mCacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mHits);
+            out.writeInt(mMisses);
+            out.writeInt(mEntries.size());
+            // Written in LRU order, so re-reading restores recency too.
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().storedAt);
+                writeNullableString(out, e.getValue().place.city);
+                writeNullableString(out, e.getValue().place.state);
+                writeNullableString(out, e.getValue().place.country);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write geocode cache", e);
+            return;
+        }
+        if (!tmp.renameTo(mCacheFile)) {
+            Log.w(TAG, "failed to replace geocode cache snapshot");
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+}
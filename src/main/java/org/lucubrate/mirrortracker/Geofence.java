@@ -2,16 +2,71 @@ package org.lucubrate.mirrortracker;
 
 import com.google.firebase.database.IgnoreExtraProperties;
 
+import java.util.List;
+
 /**
- * POJO representing a location geofence.
+ * POJO representing a location geofence.  Either a circle given by lat, lng and radius, or, if
+ * polygon is set, a polygon evaluated locally by {@link PolygonGeofenceEvaluator}.
  */
 @IgnoreExtraProperties
 public class Geofence {
+    /**
+     * Label prefix of geofences the app registers for its own use, as opposed to those read from
+     * the db.
+     */
+    static final String INTERNAL_LABEL_PREFIX = "org.lucubrate.mirrortracker.";
+
     public String label;
     public double lat;
     public double lng;
     public int radius;
+    /** Polygon vertices, in order; null for circular geofences. */
+    public List<Vertex> polygon;
 
     // Default constructor required for FirebaseDB integration.
     public Geofence() {}
+
+    Geofence(String label, double lat, double lng, int radius) {
+        this.label = label;
+        this.lat = lat;
+        this.lng = lng;
+        this.radius = radius;
+    }
+
+    /** POJO representing a polygon geofence vertex. */
+    @IgnoreExtraProperties
+    public static class Vertex {
+        public double lat;
+        public double lng;
+
+        // Default constructor required for FirebaseDB integration.
+        public Vertex() {}
+    }
+
+    /** Whether this is a polygon geofence, which GMS can't monitor. */
+    boolean isPolygon() {
+        return polygon != null;
+    }
+
+    /**
+     * @return string that differs between geofences with different labels, centers, radii or
+     * vertices
+     */
+    String fingerprint() {
+        // Label goes last so it may contain any character.
+        if (polygon == null) {
+            return lat + "," + lng + "," + radius + "," + label;
+        }
+        // Same four fields as a circle, so the label can be recovered the same way.
+        StringBuilder sb = new StringBuilder();
+        for (Vertex v : polygon) {
+            sb.append(v == null ? "null" : v.lat + ":" + v.lng).append(';');
+        }
+        return sb.append(",polygon,0,").append(label).toString();
+    }
+
+    /** Whether label belongs to an internal geofence; see {@link #INTERNAL_LABEL_PREFIX}. */
+    static boolean isInternal(String label) {
+        return label.startsWith(INTERNAL_LABEL_PREFIX);
+    }
 }
@@ -0,0 +1,351 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * Grid spatial index over the db geofence list.
+ * <p>
+ * Geofences are bucketed by the {@link #CELL_DEGREES} grid cell containing their center.  Nearest
+ * queries search rings of cells outward from the query point until no unsearched cell could hold
+ * a closer geofence.  Geofences are also bucketed into every cell their circle overlaps, so
+ * containment queries only need to check a single cell.
+ * <p>
+ * Polygon geofences are bucketed into every cell their bounding box overlaps.  They only take part
+ * in containment queries; {@link #size()}, {@link #all()} and {@link #nearest} cover circular
+ * geofences, the ones that can be registered with GMS.
+ */
+final class GeofenceIndex {
+    private static final String TAG = "GeofenceIndex";
+
+    final private static double CELL_DEGREES = 0.05;
+    /** Beyond this many rings of cells, a linear scan is cheaper than continuing to search. */
+    final private static int MAX_RINGS = 40;
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    private static GeofenceIndex mIndex;
+
+    // Cell -> geofences centered in it.
+    private final Map<Long, List<Geofence>> mCells = new HashMap<>();
+    // Cell -> geofences overlapping it.
+    private final Map<Long, List<Geofence>> mCoverCells = new HashMap<>();
+    // Fingerprint -> indexed circular geofence.
+    private final Map<String, Geofence> mGeofences = new HashMap<>();
+    private int mMaxRadius;
+    // Cell -> polygons overlapping it.
+    private final Map<Long, List<GeofencePolygon>> mPolygonCells = new HashMap<>();
+    // Fingerprint -> indexed polygon.
+    private final Map<String, GeofencePolygon> mPolygons = new HashMap<>();
+    private boolean mLoaded;
+
+    /** Gets singleton instance of GeofenceIndex. */
+    static synchronized GeofenceIndex getInstance() {
+        if (mIndex == null) {
+            mIndex = new GeofenceIndex();
+        }
+        return mIndex;
+    }
+
+    private GeofenceIndex() {}
+
+    /**
+     * Replaces indexed geofences.  Only geofences that were added, removed or changed since the
+     * last call are reindexed.
+     */
+    synchronized void setGeofences(List<Geofence> geofences) {
+        mLoaded = true;
+        Map<String, Geofence> target = new HashMap<>(geofences.size());
+        Map<String, Geofence> targetPolygons = new HashMap<>();
+        for (Geofence g : geofences) {
+            if (g == null || g.label == null) {
+                continue;
+            }
+            (g.isPolygon() ? targetPolygons : target).put(g.fingerprint(), g);
+        }
+        setPolygons(targetPolygons);
+
+        boolean removedMax = false;
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Geofence> e : mGeofences.entrySet()) {
+            if (!target.containsKey(e.getKey())) {
+                removed.add(e.getKey());
+            }
+        }
+        for (String fingerprint : removed) {
+            Geofence g = mGeofences.remove(fingerprint);
+            removeFromCell(mCells, cellKey(row(g.lat), col(g.lng)), g);
+            forEachCoveredCell(g, key -> removeFromCell(mCoverCells, key, g));
+            removedMax |= g.radius == mMaxRadius;
+        }
+
+        for (Map.Entry<String, Geofence> e : target.entrySet()) {
+            if (mGeofences.containsKey(e.getKey())) {
+                continue;
+            }
+            Geofence g = e.getValue();
+            mGeofences.put(e.getKey(), g);
+            mCells.computeIfAbsent(cellKey(row(g.lat), col(g.lng)), k -> new ArrayList<>()).add(g);
+            forEachCoveredCell(g,
+                    key -> mCoverCells.computeIfAbsent(key, k -> new ArrayList<>()).add(g));
+            mMaxRadius = Math.max(mMaxRadius, g.radius);
+        }
+
+        if (removedMax) {
+            mMaxRadius = 0;
+            for (Geofence g : mGeofences.values()) {
+                mMaxRadius = Math.max(mMaxRadius, g.radius);
+            }
+        }
+    }
+
+    /** Reindexes polygons added, removed or changed since the last call. */
+    private void setPolygons(Map<String, Geofence> target) {
+        List<String> removed = new ArrayList<>();
+        for (String fingerprint : mPolygons.keySet()) {
+            if (!target.containsKey(fingerprint)) {
+                removed.add(fingerprint);
+            }
+        }
+        for (String fingerprint : removed) {
+            GeofencePolygon p = mPolygons.remove(fingerprint);
+            forEachCoveredCell(p, key -> removeFromCell(mPolygonCells, key, p));
+        }
+
+        for (Map.Entry<String, Geofence> e : target.entrySet()) {
+            if (mPolygons.containsKey(e.getKey())) {
+                continue;
+            }
+            GeofencePolygon p = GeofencePolygon.of(e.getValue());
+            if (p == null) {
+                Log.w(TAG, "ignoring malformed polygon geofence " + e.getValue().label);
+                continue;
+            }
+            mPolygons.put(e.getKey(), p);
+            forEachCoveredCell(p,
+                    key -> mPolygonCells.computeIfAbsent(key, k -> new ArrayList<>()).add(p));
+        }
+    }
+
+    /** Whether geofences have been read from the db since the process started. */
+    synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    synchronized int size() {
+        return mGeofences.size();
+    }
+
+    synchronized List<Geofence> all() {
+        return new ArrayList<>(mGeofences.values());
+    }
+
+    /**
+     * @return label of the smallest geofence, circular or polygon, containing lat/lng, or null if
+     * no geofence contains it
+     */
+    @Nullable
+    synchronized String labelAt(double lat, double lng) {
+        long key = cellKey(row(lat), col(lng));
+        String label = null;
+        double bestArea = Double.MAX_VALUE;
+        List<Geofence> cell = mCoverCells.get(key);
+        if (cell != null) {
+            for (int i = 0; i < cell.size(); i++) {
+                Geofence g = cell.get(i);
+                // Equirectangular approximation; plenty accurate at geofence scale.
+                double dy = (lat - g.lat) * METERS_PER_DEGREE;
+                double dx = (lng - g.lng) * METERS_PER_DEGREE * Math.cos(Math.toRadians(g.lat));
+                double area = Math.PI * g.radius * g.radius;
+                if (dx * dx + dy * dy <= (double) g.radius * g.radius && area < bestArea) {
+                    label = g.label;
+                    bestArea = area;
+                }
+            }
+        }
+        List<GeofencePolygon> polygons = mPolygonCells.get(key);
+        if (polygons != null) {
+            for (int i = 0; i < polygons.size(); i++) {
+                GeofencePolygon p = polygons.get(i);
+                if (p.area < bestArea && p.contains(lat, lng)) {
+                    label = p.geofence.label;
+                    bestArea = p.area;
+                }
+            }
+        }
+        return label;
+    }
+
+    /** @return labels of all polygon geofences containing lat/lng */
+    synchronized Set<String> polygonsAt(double lat, double lng) {
+        Set<String> labels = new HashSet<>();
+        List<GeofencePolygon> polygons = mPolygonCells.get(cellKey(row(lat), col(lng)));
+        if (polygons != null) {
+            for (int i = 0; i < polygons.size(); i++) {
+                GeofencePolygon p = polygons.get(i);
+                if (p.contains(lat, lng)) {
+                    labels.add(p.geofence.label);
+                }
+            }
+        }
+        return labels;
+    }
+
+    /** @return labels of all indexed polygon geofences */
+    synchronized Set<String> polygonLabels() {
+        Set<String> labels = new HashSet<>();
+        for (GeofencePolygon p : mPolygons.values()) {
+            labels.add(p.geofence.label);
+        }
+        return labels;
+    }
+
+    /**
+     * @return up to n geofences whose boundaries are nearest lat/lng, nearest first.  Geofences
+     * containing lat/lng have negative boundary distance, so sort first.
+     */
+    synchronized List<Geofence> nearest(double lat, double lng, int n) {
+        List<Geofence> candidates = new ArrayList<>();
+        if (mGeofences.size() <= n) {
+            candidates.addAll(mGeofences.values());
+        } else {
+            int row = row(lat);
+            int col = col(lng);
+            int ring = 0;
+            double nthDistance = Double.MAX_VALUE;
+            while (true) {
+                if (ring > MAX_RINGS) {
+                    // Sparse neighbourhood; just check everything.
+                    candidates.clear();
+                    candidates.addAll(mGeofences.values());
+                    break;
+                }
+                for (int r = row - ring; r <= row + ring; r++) {
+                    boolean edgeRow = r == row - ring || r == row + ring;
+                    for (int c = col - ring; c <= col + ring; c += edgeRow ? 1 : 2 * ring) {
+                        List<Geofence> cell = mCells.get(cellKey(r, c));
+                        if (cell != null) {
+                            candidates.addAll(cell);
+                        }
+                        if (ring == 0) {
+                            break;
+                        }
+                    }
+                }
+                if (candidates.size() >= n) {
+                    sortByBoundaryDistance(candidates, lat, lng);
+                    nthDistance = boundaryDistance(candidates.get(n - 1), lat, lng);
+                }
+                // Anything in the next ring is at least ring full cells away.
+                double lngScale = Math.cos(Math.toRadians(
+                        Math.min(89, Math.abs(lat) + (ring + 1) * CELL_DEGREES)));
+                double nextRingMeters = ring * CELL_DEGREES * METERS_PER_DEGREE * lngScale;
+                if (nextRingMeters - mMaxRadius > nthDistance ||
+                        candidates.size() == mGeofences.size()) {
+                    break;
+                }
+                ring++;
+            }
+        }
+        sortByBoundaryDistance(candidates, lat, lng);
+        return new ArrayList<>(candidates.subList(0, Math.min(n, candidates.size())));
+    }
+
+    /**
+     * @return distance from lat/lng to the nearest geofence boundary, circle or polygon, whether
+     * entering or exiting; Double.MAX_VALUE if there are no geofences
+     */
+    synchronized double nearestBoundaryDistance(double lat, double lng) {
+        double best = Double.MAX_VALUE;
+        // Containing geofences sort first in nearest(), so ask for enough to get past them to the
+        // nearest non-containing one too.
+        int containing = 0;
+        List<Geofence> cell = mCoverCells.get(cellKey(row(lat), col(lng)));
+        if (cell != null) {
+            containing = cell.size();
+        }
+        for (Geofence g : nearest(lat, lng, containing + 1)) {
+            best = Math.min(best, Math.abs(boundaryDistance(g, lat, lng)));
+        }
+        for (GeofencePolygon p : mPolygons.values()) {
+            if (p.boundingBoxDistance(lat, lng) < best) {
+                best = Math.min(best, p.boundaryDistance(lat, lng));
+            }
+        }
+        return best;
+    }
+
+    /** @return distance from lat/lng to g's boundary; negative if lat/lng is inside g */
+    static double boundaryDistance(Geofence g, double lat, double lng) {
+        return distanceMeters(g.lat, g.lng, lat, lng) - g.radius;
+    }
+
+    /** @return great circle distance between two points */
+    static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static void sortByBoundaryDistance(List<Geofence> geofences, double lat, double lng) {
+        Collections.sort(geofences,
+                Comparator.comparingDouble(g -> boundaryDistance(g, lat, lng)));
+    }
+
+    /** Invokes action with the key of each cell overlapped by g's bounding box. */
+    private static void forEachCoveredCell(Geofence g, LongConsumer action) {
+        double latSpan = g.radius / METERS_PER_DEGREE;
+        double lngSpan = g.radius / (METERS_PER_DEGREE *
+                Math.max(0.01, Math.cos(Math.toRadians(Math.min(89, Math.abs(g.lat) + latSpan)))));
+        for (int r = row(g.lat - latSpan); r <= row(g.lat + latSpan); r++) {
+            for (int c = col(g.lng - lngSpan); c <= col(g.lng + lngSpan); c++) {
+                action.accept(cellKey(r, c));
+            }
+        }
+    }
+
+    /** Invokes action with the key of each cell overlapped by p's bounding box. */
+    private static void forEachCoveredCell(GeofencePolygon p, LongConsumer action) {
+        for (int r = row(p.minLat); r <= row(p.maxLat); r++) {
+            for (int c = col(p.minLng); c <= col(p.maxLng); c++) {
+                action.accept(cellKey(r, c));
+            }
+        }
+    }
+
+    private static <T> void removeFromCell(Map<Long, List<T>> cells, long key, T g) {
+        List<T> cell = cells.get(key);
+        if (cell == null) {
+            return;
+        }
+        cell.remove(g);
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+    }
+
+    private static int row(double lat) {
+        return (int) Math.floor(lat / CELL_DEGREES);
+    }
+
+    private static int col(double lng) {
+        return (int) Math.floor(lng / CELL_DEGREES);
+    }
+
+    private static long cellKey(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+}
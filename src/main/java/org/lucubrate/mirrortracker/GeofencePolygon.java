@@ -0,0 +1,185 @@
+package org.lucubrate.mirrortracker;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A polygon {@link Geofence} preprocessed for fast point-in-polygon tests.
+ * <p>
+ * The bounding box is split into horizontal bands, each listing only the edges that span it, so a
+ * containment test rejects points outside the bounding box outright and otherwise ray casts
+ * against a handful of edges.  Edges are stored as flat arrays with their inverse slopes
+ * precomputed.  Polygons crossing the antimeridian aren't supported.
+ */
+final class GeofencePolygon {
+    /** Target number of edges per band. */
+    final private static int EDGES_PER_BAND = 4;
+    final private static int MAX_BANDS = 64;
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    final Geofence geofence;
+    final double minLat;
+    final double maxLat;
+    final double minLng;
+    final double maxLng;
+    /** Area in square meters. */
+    final double area;
+
+    // Edge i runs from (mLat0[i], mLng0[i]), sweeping mLngPerLat[i] degrees of lng per degree of
+    // lat, up to mLat1[i].  Horizontal edges are dropped, since a ray cast along lat can't cross
+    // them.
+    private final double[] mLat0;
+    private final double[] mLat1;
+    private final double[] mLng0;
+    private final double[] mLngPerLat;
+    private final int mBandCount;
+    private final double mBandHeight;
+    // Indices of edges spanning each band.
+    private final int[][] mBands;
+
+    /** @return prepared polygon for g, or null if g isn't a valid polygon geofence */
+    @Nullable
+    static GeofencePolygon of(Geofence g) {
+        if (g.polygon == null || g.polygon.size() < 3) {
+            return null;
+        }
+        for (Geofence.Vertex v : g.polygon) {
+            if (v == null) {
+                return null;
+            }
+        }
+        return new GeofencePolygon(g);
+    }
+
+    private GeofencePolygon(Geofence g) {
+        geofence = g;
+        List<Geofence.Vertex> vertices = g.polygon;
+        int n = vertices.size();
+
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+        for (Geofence.Vertex v : vertices) {
+            minLat = Math.min(minLat, v.lat);
+            maxLat = Math.max(maxLat, v.lat);
+            minLng = Math.min(minLng, v.lng);
+            maxLng = Math.max(maxLng, v.lng);
+        }
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLng = minLng;
+        this.maxLng = maxLng;
+
+        List<double[]> edges = new ArrayList<>(n);
+        double twiceArea = 0;
+        double lngScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        for (int i = 0; i < n; i++) {
+            Geofence.Vertex a = vertices.get(i);
+            Geofence.Vertex b = vertices.get((i + 1) % n);
+            twiceArea += (a.lng - b.lng) * (a.lat + b.lat);
+            if (a.lat == b.lat) {
+                continue;
+            }
+            // Orient every edge upward so band assignment only needs lat0 <= lat1.
+            Geofence.Vertex lo = a.lat < b.lat ? a : b;
+            Geofence.Vertex hi = a.lat < b.lat ? b : a;
+            edges.add(new double[] {
+                    lo.lat, hi.lat, lo.lng, (hi.lng - lo.lng) / (hi.lat - lo.lat)});
+        }
+        area = Math.abs(twiceArea) / 2 *
+                METERS_PER_DEGREE * METERS_PER_DEGREE * lngScale;
+
+        int m = edges.size();
+        mLat0 = new double[m];
+        mLat1 = new double[m];
+        mLng0 = new double[m];
+        mLngPerLat = new double[m];
+        for (int i = 0; i < m; i++) {
+            double[] e = edges.get(i);
+            mLat0[i] = e[0];
+            mLat1[i] = e[1];
+            mLng0[i] = e[2];
+            mLngPerLat[i] = e[3];
+        }
+
+        mBandCount = Math.max(1, Math.min(MAX_BANDS, m / EDGES_PER_BAND));
+        mBandHeight = (maxLat - minLat) / mBandCount;
+        int[] counts = new int[mBandCount];
+        for (int i = 0; i < m; i++) {
+            for (int b = band(mLat0[i]); b <= band(mLat1[i]); b++) {
+                counts[b]++;
+            }
+        }
+        mBands = new int[mBandCount][];
+        for (int b = 0; b < mBandCount; b++) {
+            mBands[b] = new int[counts[b]];
+            counts[b] = 0;
+        }
+        for (int i = 0; i < m; i++) {
+            for (int b = band(mLat0[i]); b <= band(mLat1[i]); b++) {
+                mBands[b][counts[b]++] = i;
+            }
+        }
+    }
+
+    /** Whether lat/lng lies inside the polygon. */
+    boolean contains(double lat, double lng) {
+        if (lat < minLat || lat > maxLat || lng < minLng || lng > maxLng) {
+            return false;
+        }
+        boolean inside = false;
+        int[] band = mBands[band(lat)];
+        for (int j = 0; j < band.length; j++) {
+            int i = band[j];
+            // Half-open in lat so a ray through a vertex counts exactly one of its edges.
+            if (lat < mLat0[i] || lat >= mLat1[i]) {
+                continue;
+            }
+            if (lng < mLng0[i] + (lat - mLat0[i]) * mLngPerLat[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /** @return distance from lat/lng to the polygon's bounding box; 0 if inside it */
+    double boundingBoxDistance(double lat, double lng) {
+        double dy = Math.max(0, Math.max(minLat - lat, lat - maxLat)) * METERS_PER_DEGREE;
+        double dx = Math.max(0, Math.max(minLng - lng, lng - maxLng)) * METERS_PER_DEGREE *
+                Math.cos(Math.toRadians(lat));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** @return distance from lat/lng to the nearest polygon edge, whether inside or outside */
+    double boundaryDistance(double lat, double lng) {
+        // Equirectangular projection centered on lat/lng.
+        double lngScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        List<Geofence.Vertex> vertices = geofence.polygon;
+        int n = vertices.size();
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            Geofence.Vertex a = vertices.get(i);
+            Geofence.Vertex b = vertices.get((i + 1) % n);
+            double ax = (a.lng - lng) * lngScale;
+            double ay = (a.lat - lat) * METERS_PER_DEGREE;
+            double ex = (b.lng - lng) * lngScale - ax;
+            double ey = (b.lat - lat) * METERS_PER_DEGREE - ay;
+            double lengthSq = ex * ex + ey * ey;
+            // Closest point on the edge to the origin.
+            double t = lengthSq == 0 ? 0 :
+                    Math.max(0, Math.min(1, -(ax * ex + ay * ey) / lengthSq));
+            double x = ax + t * ex;
+            double y = ay + t * ey;
+            best = Math.min(best, x * x + y * y);
+        }
+        return Math.sqrt(best);
+    }
+
+    private int band(double lat) {
+        if (mBandHeight <= 0) {
+            return 0;
+        }
+        return Math.min(mBandCount - 1, Math.max(0, (int) ((lat - minLat) / mBandHeight)));
+    }
+}
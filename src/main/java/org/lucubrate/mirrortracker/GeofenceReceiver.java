@@ -1,24 +1,39 @@
 package org.lucubrate.mirrortracker;
 
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.location.Location;
 import android.util.Log;
+import androidx.annotation.Nullable;
 
+import com.google.android.gms.location.GeofenceStatusCodes;
 import com.google.android.gms.location.GeofencingEvent;
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.auth.FirebaseUser;
+
+import java.util.Collections;
+import java.util.List;
 
 import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
 import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
 
-public class GeofenceReceiver extends BroadcastReceiver {
+public class GeofenceReceiver extends BroadcastReceiver
+        implements LocationPipeline.Source<GeofencingEvent> {
     private static final String TAG = "GeofenceReceiver";
 
     // This MUST match action filter for this receiver in the manifest.
     static String GEOFENCE_INTENT_ACTION = "org.lucubrate.mirrortracker.GEOFENCE_LOCATION";
 
+    /** @return PendingIntent through which geofence events are delivered here */
+    static PendingIntent getPendingIntent(Context context) {
+        final Intent intent = new Intent();
+        intent.setClass(context, GeofenceReceiver.class);
+        intent.setAction(GEOFENCE_INTENT_ACTION);
+        return PendingIntent.getBroadcast(
+                context.getApplicationContext(), 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent == null || !GEOFENCE_INTENT_ACTION.equals(intent.getAction())) {
@@ -26,39 +41,80 @@ public class GeofenceReceiver extends BroadcastReceiver {
             return;
         }
         Log.d(TAG, "received geofence intent");
+        GeofencingEvent e = GeofencingEvent.fromIntent(intent);
+        if (e != null && e.hasError() &&
+                e.getErrorCode() == GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE) {
+            // Location was turned off, and GMS dropped all our geofences.
+            Log.w(TAG, "geofences unavailable; forgetting registrations");
+            GeofenceSync.getInstance(context).clear();
+        }
+        LocationPipeline.getInstance().process(context, intent, goAsync(), this);
+    }
 
+    @Nullable
+    @Override
+    public GeofencingEvent validate(Intent intent) {
         GeofencingEvent e = GeofencingEvent.fromIntent(intent);
         if (e == null) {
             Log.e(TAG, "Missing GeofencingEvent.");
-            return;
+            return null;
         }
         if (e.hasError()) {
             Log.e(TAG, "GeofencingEvent error: " + e.getErrorCode());
-            return;
+            return null;
         }
 
-        if (NetworkCheck.isNetworkUnavailable(context)) {
-            Log.d(TAG, "ignoring geofence evt because we can't ping it to the network now.");
-            return;
+        int geofenceTransition = e.getGeofenceTransition();
+        if (geofenceTransition != GEOFENCE_TRANSITION_ENTER &&
+                geofenceTransition != GEOFENCE_TRANSITION_EXIT) {
+            return null;
         }
+        return e;
+    }
 
-        int geofenceTransition = e.getGeofenceTransition();
-        if (geofenceTransition == GEOFENCE_TRANSITION_ENTER ||
-                geofenceTransition == GEOFENCE_TRANSITION_EXIT) {
-            DebugLog.getInstance(context.getFilesDir()).logGeofencingEvent(e);
-            Location loc = e.getTriggeringLocation();
-            if (loc != null) {
-                Log.d(TAG, "sending fused location to db");
+    @Override
+    public void log(DebugLog log, GeofencingEvent e) {
+        log.logGeofencingEvent(e);
+    }
+
+    @Override
+    public List<LocationUpdate> updates(Context context, GeofencingEvent e) {
+        Location loc = e.getTriggeringLocation();
+        if (loc == null) {
+            return Collections.emptyList();
+        }
 
-                FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
-                if (u == null) {
-                    Log.e(TAG, "no firebase user for which to update location");
-                    return;
+        List<com.google.android.gms.location.Geofence> fences = e.getTriggeringGeofences();
+        String label = "";
+        if (fences != null) {
+            for (com.google.android.gms.location.Geofence g : fences) {
+                String id = g.getRequestId();
+                if (GeofenceWindow.BOUNDARY_FENCE_ID.equals(id)) {
+                    onWindowBoundaryExited(context, loc);
+                } else if (FixScheduler.STATIONARY_FENCE_ID.equals(id)) {
+                    FixScheduler.getInstance(context).onStationaryFenceExited();
+                } else if (!Geofence.isInternal(id) && label.isEmpty()) {
+                    label = id;
                 }
-                FirebaseDB.getInstance(u.getUid(), null).updateLocation(context, loc);
-            } else {
-                Log.d(TAG, "location unavailable");
             }
         }
+
+        Log.d(TAG, "sending geofence location to db");
+        if (label.isEmpty()) {
+            // Only internal geofences triggered; still a perfectly good location fix.
+            return Collections.singletonList(LocationUpdate.fromGeofence(
+                    loc, LocationUpdate.TRANSITION_NONE, ""));
+        }
+        return Collections.singletonList(
+                LocationUpdate.fromGeofence(loc, e.getGeofenceTransition(), label));
+    }
+
+    private static void onWindowBoundaryExited(Context context, Location loc) {
+        Log.d(TAG, "left geofence window; recentering");
+        if (!GeofenceWindow.getInstance(context).recenter(
+                loc.getLatitude(), loc.getLongitude())) {
+            // Service not running, so wake it to register the new window.
+            LocationService.enqueueWork(context);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which geofences are registered with GMS, so that changes to the db geofence list can be
+ * applied incrementally.
+ * <p>
+ * Each registered geofence is fingerprinted by its label, center and radius.  The fingerprints are
+ * persisted to shared preferences, since GMS geofences outlive this process; they're cleared on
+ * boot and when GMS reports geofences unavailable, which is when GMS forgets them.  GMS can also
+ * forget them unannounced, e.g. when its data is cleared, so {@link LocationService} re-registers
+ * everything once per start.
+ */
+final class GeofenceSync {
+    private static GeofenceSync mGeofenceSync;
+
+    private final SharedPreferences mPrefs;
+    // Registered geofence label -> fingerprint.
+    private final Map<String, String> mRegistered = new HashMap<>();
+    private int mContentHash;
+
+    /** Geofence changes needed to go from the registered set to a target set. */
+    static final class Diff {
+        /** Geofences to register, both new and changed. */
+        final List<Geofence> added = new ArrayList<>();
+        /** Labels of geofences to unregister, both removed and changed. */
+        final List<String> removed = new ArrayList<>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /** Gets singleton instance of GeofenceSync. */
+    static synchronized GeofenceSync getInstance(Context context) {
+        if (mGeofenceSync == null) {
+            mGeofenceSync = new GeofenceSync(context.getApplicationContext());
+        }
+        return mGeofenceSync;
+    }
+
+    private GeofenceSync(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+        Set<String> fingerprints = mPrefs.getStringSet(
+                Preferences.REGISTERED_GEOFENCES_PREF_KEY.val, Collections.emptySet());
+        for (String fingerprint : fingerprints) {
+            mRegistered.put(labelOf(fingerprint), fingerprint);
+        }
+        mContentHash = contentHash(mRegistered.values());
+    }
+
+    /** @return changes needed to register exactly target */
+    synchronized Diff diff(List<Geofence> target) {
+        Diff diff = new Diff();
+        Map<String, String> targetFingerprints = new HashMap<>(target.size());
+        for (Geofence g : target) {
+            targetFingerprints.put(g.label, g.fingerprint());
+        }
+        if (targetFingerprints.size() == mRegistered.size() &&
+                contentHash(targetFingerprints.values()) == mContentHash &&
+                targetFingerprints.equals(mRegistered)) {
+            return diff;
+        }
+
+        for (Geofence g : target) {
+            String registered = mRegistered.get(g.label);
+            String fingerprint = targetFingerprints.get(g.label);
+            if (registered == null) {
+                diff.added.add(g);
+            } else if (!registered.equals(fingerprint)) {
+                diff.removed.add(g.label);
+                diff.added.add(g);
+            }
+        }
+        for (String label : mRegistered.keySet()) {
+            if (!targetFingerprints.containsKey(label)) {
+                diff.removed.add(label);
+            }
+        }
+        return diff;
+    }
+
+    /** Records that diff was applied to GMS. */
+    synchronized void commit(Diff diff) {
+        for (String label : diff.removed) {
+            mRegistered.remove(label);
+        }
+        for (Geofence g : diff.added) {
+            mRegistered.put(g.label, g.fingerprint());
+        }
+        persist();
+    }
+
+    /** Records that geofences failed to register, so they're retried on the next sync. */
+    synchronized void forget(Collection<Geofence> geofences) {
+        for (Geofence g : geofences) {
+            mRegistered.remove(g.label);
+        }
+        persist();
+    }
+
+    /** @return labels of all registered geofences */
+    synchronized List<String> registeredLabels() {
+        return new ArrayList<>(mRegistered.keySet());
+    }
+
+    /** Records that no geofences are registered. */
+    synchronized void clear() {
+        mRegistered.clear();
+        persist();
+    }
+
+    private void persist() {
+        mContentHash = contentHash(mRegistered.values());
+        mPrefs.edit()
+                .putStringSet(Preferences.REGISTERED_GEOFENCES_PREF_KEY.val,
+                        new HashSet<>(mRegistered.values()))
+                .apply();
+    }
+
+    // Inverse of Geofence#fingerprint.
+    private static String labelOf(String fingerprint) {
+        return fingerprint.split(",", 4)[3];
+    }
+
+    // Order independent, like the geofence set itself.
+    private static int contentHash(Collection<String> fingerprints) {
+        int hash = 0;
+        for (String f : fingerprints) {
+            hash += f.hashCode();
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,131 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Chooses which geofences to register with GMS, which caps apps at 100 geofences.
+ * <p>
+ * When there are more than {@link #MAX_WINDOW_SIZE} geofences, only the ones nearest the window
+ * center are registered, along with an exit-only boundary geofence around the center.  Its radius
+ * is the distance to the nearest unregistered geofence, so the device can't enter an unregistered
+ * geofence without first exiting the boundary.  {@link GeofenceReceiver} recenters the window on
+ * boundary exit, and {@link LocationService} then registers the new window.  Before the first
+ * window, LocationService seeds the center with the last known location; see
+ * {@link #needsCenter}.
+ */
+final class GeofenceWindow {
+    /** Request id of the boundary geofence. */
+    static final String BOUNDARY_FENCE_ID = Geofence.INTERNAL_LABEL_PREFIX + "window_boundary";
+
+    /** Max db geofences to register; leaves room under the GMS limit for internal geofences. */
+    final private static int MAX_WINDOW_SIZE = 90;
+    /** Boundary radius floor, below which GMS geofences become unreliable. */
+    final private static int MIN_BOUNDARY_RADIUS_METERS = 150;
+
+    /** Notified when the window center moves. */
+    interface Listener {
+        void onWindowMoved();
+    }
+
+    private static GeofenceWindow mWindow;
+
+    private final SharedPreferences mPrefs;
+    private double mBoundaryRadius = Double.MAX_VALUE;
+    @Nullable private Listener mListener;
+    @Nullable private Executor mListenerExecutor;
+
+    /** Gets singleton instance of GeofenceWindow. */
+    static synchronized GeofenceWindow getInstance(Context context) {
+        if (mWindow == null) {
+            mWindow = new GeofenceWindow(context.getApplicationContext());
+        }
+        return mWindow;
+    }
+
+    private GeofenceWindow(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+    }
+
+    /** @param listener if non-null, notified on executor when the window center moves */
+    synchronized void setListener(@Nullable Listener listener, @Nullable Executor executor) {
+        mListener = listener;
+        mListenerExecutor = executor;
+    }
+
+    /** Whether index has more geofences than fit in a window, but there's no center to pick by. */
+    synchronized boolean needsCenter(GeofenceIndex index) {
+        return index.size() > MAX_WINDOW_SIZE && !hasCenter();
+    }
+
+    /**
+     * @return geofences from index to register for the current window center, including the
+     * boundary geofence if needed
+     */
+    synchronized List<Geofence> select(GeofenceIndex index) {
+        if (index.size() <= MAX_WINDOW_SIZE) {
+            mBoundaryRadius = Double.MAX_VALUE;
+            return index.all();
+        }
+        if (!hasCenter()) {
+            // No location known at all; register an arbitrary window until there is one.
+            mBoundaryRadius = 0;
+            return new ArrayList<>(index.all().subList(0, MAX_WINDOW_SIZE));
+        }
+
+        double lat = centerLat();
+        double lng = centerLng();
+        List<Geofence> window = index.nearest(lat, lng, MAX_WINDOW_SIZE + 1);
+        Geofence firstExcluded = window.remove(window.size() - 1);
+        mBoundaryRadius = Math.max(MIN_BOUNDARY_RADIUS_METERS,
+                GeofenceIndex.boundaryDistance(firstExcluded, lat, lng));
+        window.add(new Geofence(BOUNDARY_FENCE_ID, lat, lng, (int) mBoundaryRadius));
+        return window;
+    }
+
+    /** Whether lat/lng is outside the registered window, so it needs recentering. */
+    synchronized boolean isOutside(double lat, double lng) {
+        return !hasCenter() ||
+                GeofenceIndex.distanceMeters(centerLat(), centerLng(), lat, lng) > mBoundaryRadius;
+    }
+
+    /**
+     * Moves window center to lat/lng.
+     * @return whether a listener was notified; if not, the window will be reselected next time
+     * {@link LocationService} starts
+     */
+    synchronized boolean recenter(double lat, double lng) {
+        mPrefs.edit()
+                .putLong(Preferences.WINDOW_CENTER_LAT_PREF_KEY.val,
+                        Double.doubleToRawLongBits(lat))
+                .putLong(Preferences.WINDOW_CENTER_LNG_PREF_KEY.val,
+                        Double.doubleToRawLongBits(lng))
+                .apply();
+        if (mListener == null) {
+            return false;
+        }
+        Listener listener = mListener;
+        mListenerExecutor.execute(listener::onWindowMoved);
+        return true;
+    }
+
+    private boolean hasCenter() {
+        return mPrefs.contains(Preferences.WINDOW_CENTER_LAT_PREF_KEY.val);
+    }
+
+    private double centerLat() {
+        return Double.longBitsToDouble(
+                mPrefs.getLong(Preferences.WINDOW_CENTER_LAT_PREF_KEY.val, 0));
+    }
+
+    private double centerLng() {
+        return Double.longBitsToDouble(
+                mPrefs.getLong(Preferences.WINDOW_CENTER_LNG_PREF_KEY.val, 0));
+    }
+}
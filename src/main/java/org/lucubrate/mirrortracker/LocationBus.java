@@ -0,0 +1,90 @@
+package org.lucubrate.mirrortracker;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process publish/subscribe bus for location updates written to the db.
+ * <p>
+ * Delivery is conflated: a subscriber that hasn't finished handling one update when several more
+ * are published only receives the newest.  New subscribers immediately receive the latest update,
+ * if any.
+ */
+final class LocationBus {
+    /** Receives location updates on the executor it subscribed with. */
+    interface Subscriber {
+        void onLocationUpdated(LocationEvent e);
+    }
+
+    private static LocationBus mBus;
+
+    private final AtomicReference<LocationEvent> mLatest = new AtomicReference<>();
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /** Gets singleton instance of LocationBus. */
+    static synchronized LocationBus getInstance() {
+        if (mBus == null) {
+            mBus = new LocationBus();
+        }
+        return mBus;
+    }
+
+    private LocationBus() {}
+
+    /** Publishes e to all subscribers. */
+    void publish(LocationEvent e) {
+        mLatest.set(e);
+        for (Subscription s : mSubscriptions) {
+            s.schedule();
+        }
+    }
+
+    /** Subscribes s to updates, delivered on executor. */
+    void subscribe(Subscriber s, Executor executor) {
+        Subscription subscription = new Subscription(s, executor);
+        mSubscriptions.add(subscription);
+        if (mLatest.get() != null) {
+            subscription.schedule();
+        }
+    }
+
+    void unsubscribe(Subscriber s) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.subscriber == s) {
+                subscription.active = false;
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private final class Subscription implements Runnable {
+        final Subscriber subscriber;
+        final Executor executor;
+        // Whether a delivery is queued on executor but hasn't read mLatest yet.
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean active = true;
+
+        Subscription(Subscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            LocationEvent e = mLatest.get();
+            if (active && e != null) {
+                subscriber.onLocationUpdated(e);
+            }
+        }
+    }
+}
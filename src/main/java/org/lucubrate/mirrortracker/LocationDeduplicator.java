@@ -0,0 +1,238 @@
+package org.lucubrate.mirrortracker;
+
+import android.location.Location;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges near-simultaneous updates from {@link GeofenceReceiver} and {@link FusedLocationReceiver}
+ * so they result in a single geocode and db write.
+ * <p>
+ * Batches of fused fixes are held, in memory only, for {@link #HOLD_MS} before being emitted.  If
+ * another batch arrives in that time containing an update within {@link #MERGE_WINDOW_MS} and
+ * {@link #MERGE_DISTANCE_METERS} of a held update, the two are merged.  Batches with geofence
+ * transitions aren't held, so a transition is never lost to process death, and are emitted along
+ * with any held batch they merge with.  Fused fixes that duplicate a geofence transition, held or
+ * recently emitted, are dropped in favor of the transition, since it carries a label.
+ */
+final class LocationDeduplicator {
+    private static final String TAG = "LocationDeduplicator";
+
+    // Short, as it comes out of the receivers' goAsync deadline.
+    final private static long HOLD_MS = 1500;
+    final private static long MERGE_WINDOW_MS = 60 * 1000;
+    final private static float MERGE_DISTANCE_METERS = 250;
+
+    /** Receives deduplicated batches. */
+    interface Sink {
+        /**
+         * @param callback must be invoked once updates are written; notifies the callbacks of all
+         *                 batches merged into updates
+         */
+        void emit(List<LocationUpdate> updates, FirebaseDB.WriteCallback callback);
+    }
+
+    private static LocationDeduplicator mDeduplicator;
+
+    private final ScheduledExecutorService mExecutor;
+    @Nullable private List<LocationUpdate> mPending;
+    @Nullable private List<FirebaseDB.WriteCallback> mPendingCallbacks;
+    @Nullable private Sink mPendingSink;
+    @Nullable private ScheduledFuture<?> mPendingFlush;
+    // Geofence transitions emitted within MERGE_WINDOW_MS of the newest one.
+    private final List<LocationUpdate> mRecentTransitions = new ArrayList<>();
+    private int mMerged;
+    private int mEmitted;
+
+    /** Gets singleton instance of LocationDeduplicator. */
+    static synchronized LocationDeduplicator getInstance() {
+        if (mDeduplicator == null) {
+            mDeduplicator = new LocationDeduplicator();
+        }
+        return mDeduplicator;
+    }
+
+    private LocationDeduplicator() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Offers a time-ordered batch of updates.  sink is invoked, on a background thread, with the
+     * deduplicated batch once the hold period expires, or right away if it has transitions.
+     * @param callback invoked once the batch, or the batch it was merged into, is written
+     */
+    synchronized void offer(List<LocationUpdate> batch, FirebaseDB.WriteCallback callback,
+                            Sink sink) {
+        int offered = batch.size();
+        batch = dropFixesDuplicating(batch, mRecentTransitions);
+        mMerged += offered - batch.size();
+        if (batch.isEmpty()) {
+            callback.onWriteFinished(true);
+            return;
+        }
+        boolean urgent = hasTransition(batch);
+        if (mPending != null && overlaps(mPending, batch)) {
+            List<LocationUpdate> combined = new ArrayList<>(mPending);
+            combined.addAll(batch);
+            mPending = dropDuplicateFixes(combined);
+            mMerged += combined.size() - mPending.size();
+            mPendingCallbacks.add(callback);
+            // The newest batch's sink is used; sinks only differ in which Context they hold.
+            mPendingSink = sink;
+            Log.d(TAG, "merged batch; " + mMerged + " merged, " + mEmitted + " emitted");
+            if (urgent) {
+                mPendingFlush.cancel(false);
+                emit();
+            }
+            return;
+        }
+
+        if (mPending != null) {
+            mPendingFlush.cancel(false);
+            emit();
+        }
+        mPending = new ArrayList<>(batch);
+        mPendingCallbacks = new ArrayList<>();
+        mPendingCallbacks.add(callback);
+        mPendingSink = sink;
+        if (urgent) {
+            emit();
+            return;
+        }
+        mPendingFlush = mExecutor.schedule(this::onHoldExpired, HOLD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void onHoldExpired() {
+        Runnable emit;
+        synchronized (this) {
+            if (mPending == null) {
+                return;
+            }
+            emit = takePending();
+        }
+        emit.run();
+    }
+
+    // Called with lock held when a non-overlapping batch displaces the pending one.
+    private void emit() {
+        mExecutor.execute(takePending());
+    }
+
+    /** Clears pending state, returning a task that emits it.  Must be called with lock held. */
+    private Runnable takePending() {
+        List<LocationUpdate> pending = mPending;
+        List<FirebaseDB.WriteCallback> callbacks = mPendingCallbacks;
+        Sink sink = mPendingSink;
+        mPending = null;
+        mPendingCallbacks = null;
+        mPendingSink = null;
+        mPendingFlush = null;
+        mEmitted++;
+        rememberTransitions(pending);
+        return () -> sink.emit(pending, committed -> {
+            for (FirebaseDB.WriteCallback c : callbacks) {
+                c.onWriteFinished(committed);
+            }
+        });
+    }
+
+    private void rememberTransitions(List<LocationUpdate> updates) {
+        long newest = Long.MIN_VALUE;
+        for (LocationUpdate u : updates) {
+            if (u.isTransition()) {
+                mRecentTransitions.add(u);
+            }
+        }
+        for (LocationUpdate u : mRecentTransitions) {
+            newest = Math.max(newest, u.time);
+        }
+        for (int i = mRecentTransitions.size() - 1; i >= 0; i--) {
+            if (newest - mRecentTransitions.get(i).time > MERGE_WINDOW_MS) {
+                mRecentTransitions.remove(i);
+            }
+        }
+    }
+
+    private static boolean hasTransition(List<LocationUpdate> updates) {
+        for (LocationUpdate u : updates) {
+            if (u.isTransition()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return updates without fused fixes that duplicate one of transitions */
+    private static List<LocationUpdate> dropFixesDuplicating(List<LocationUpdate> updates,
+                                                             List<LocationUpdate> transitions) {
+        if (transitions.isEmpty()) {
+            return updates;
+        }
+        List<LocationUpdate> kept = new ArrayList<>(updates.size());
+        for (LocationUpdate u : updates) {
+            boolean duplicate = false;
+            if (u.source == LocationUpdate.SOURCE_FUSED) {
+                for (LocationUpdate t : transitions) {
+                    if (isDuplicate(u, t)) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+            }
+            if (!duplicate) {
+                kept.add(u);
+            }
+        }
+        return kept;
+    }
+
+    private static boolean overlaps(List<LocationUpdate> a, List<LocationUpdate> b) {
+        for (LocationUpdate x : a) {
+            for (LocationUpdate y : b) {
+                if (isDuplicate(x, y)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return updates without fused fixes that duplicate a geofence transition, in time order */
+    private static List<LocationUpdate> dropDuplicateFixes(List<LocationUpdate> updates) {
+        List<LocationUpdate> kept = new ArrayList<>(updates.size());
+        for (LocationUpdate u : updates) {
+            boolean duplicate = false;
+            if (u.source == LocationUpdate.SOURCE_FUSED) {
+                for (LocationUpdate other : updates) {
+                    if (other.source == LocationUpdate.SOURCE_GEOFENCE && isDuplicate(u, other)) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+            }
+            if (!duplicate) {
+                kept.add(u);
+            }
+        }
+        Collections.sort(kept, Comparator.comparingLong(u -> u.time));
+        return kept;
+    }
+
+    private static boolean isDuplicate(LocationUpdate a, LocationUpdate b) {
+        if (Math.abs(a.time - b.time) > MERGE_WINDOW_MS) {
+            return false;
+        }
+        float[] distance = new float[1];
+        Location.distanceBetween(a.lat, a.lng, b.lat, b.lng, distance);
+        return distance[0] <= MERGE_DISTANCE_METERS;
+    }
+}
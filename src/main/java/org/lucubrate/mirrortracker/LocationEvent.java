@@ -13,7 +13,10 @@ public class LocationEvent {
     public String country;
     public double lat;
     public double lng;
-    /** User defined label for this location, or null if not available.  e.g. "home" */
+    /**
+     * User defined label for this location, or "" if not available.  e.g. "home".  This is the
+     * label of the smallest db geofence containing the location.
+     */
     public String label;
 
     public LocationEvent(long timestamp, String city, String state, String country, double lat,
@@ -0,0 +1,144 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rejects bad fused fixes and smooths the rest, before they cost a geocode and db write.
+ * <p>
+ * Fixes are rejected if their accuracy radius exceeds {@link #MAX_ACCURACY_METERS}, or if reaching
+ * them from the previous accepted fix would take an implausible speed, as multipath jumps do.
+ * Accepted fixes pass through a Kalman filter over lat/lng with the accuracy radius as measurement
+ * noise.  Process noise grows with the distance actually moved, so a still device's jitter is
+ * averaged away while a moving one is tracked without lag.  Filter state is persisted to shared
+ * preferences, since fixes arrive in short-lived broadcasts.
+ */
+final class LocationFilter {
+    private static final String TAG = "LocationFilter";
+
+    final private static float MAX_ACCURACY_METERS = 150;
+    /** About 250 km/h; anything faster between consecutive fixes is a bad fix. */
+    final private static double MAX_SPEED_MPS = 70;
+    /**
+     * Consecutive speed rejections after which the previous fix is assumed to have been the bad
+     * one, and the filter restarts from the latest.
+     */
+    final private static int MAX_REJECT_STREAK = 3;
+    /** Process noise variance per second while still, in m^2/s. */
+    final private static double STILL_PROCESS_NOISE = 1;
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private static LocationFilter mFilter;
+
+    private final SharedPreferences mPrefs;
+
+    // Filter state; mTime is 0 until the first fix is accepted.
+    private long mTime;
+    private double mLat;
+    private double mLng;
+    /** Estimate variance in m^2. */
+    private double mVariance;
+    private int mRejectStreak;
+
+    /** Gets singleton instance of LocationFilter. */
+    static synchronized LocationFilter getInstance(Context context) {
+        if (mFilter == null) {
+            mFilter = new LocationFilter(context.getApplicationContext());
+        }
+        return mFilter;
+    }
+
+    private LocationFilter(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+        mTime = mPrefs.getLong(Preferences.FILTER_TIME_PREF_KEY.val, 0);
+        mLat = Double.longBitsToDouble(mPrefs.getLong(Preferences.FILTER_LAT_PREF_KEY.val, 0));
+        mLng = Double.longBitsToDouble(mPrefs.getLong(Preferences.FILTER_LNG_PREF_KEY.val, 0));
+        mVariance = Double.longBitsToDouble(
+                mPrefs.getLong(Preferences.FILTER_VARIANCE_PREF_KEY.val, 0));
+        mRejectStreak = mPrefs.getInt(Preferences.FILTER_REJECT_STREAK_PREF_KEY.val, 0);
+    }
+
+    /**
+     * @param fixes time-ordered fused fixes
+     * @return accepted fixes, smoothed, in time order
+     */
+    synchronized List<LocationUpdate> filter(List<LocationUpdate> fixes) {
+        List<LocationUpdate> accepted = new ArrayList<>(fixes.size());
+        for (LocationUpdate u : fixes) {
+            LocationUpdate smoothed = filter(u);
+            if (smoothed != null) {
+                accepted.add(smoothed);
+            }
+        }
+        save();
+        return accepted;
+    }
+
+    /** @return u smoothed, or null if rejected */
+    @Nullable
+    private LocationUpdate filter(LocationUpdate u) {
+        // Zero accuracy means the provider didn't report one.
+        if (u.accuracy <= 0 || u.accuracy > MAX_ACCURACY_METERS) {
+            return null;
+        }
+        if (mTime == 0) {
+            reset(u);
+            return u;
+        }
+        if (u.time <= mTime) {
+            // Stale or duplicate fix; the estimate already accounts for it.
+            return null;
+        }
+
+        double dtSeconds = (u.time - mTime) / 1000.0;
+        double lngScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(mLat));
+        double dy = (u.lat - mLat) * METERS_PER_DEGREE;
+        double dx = (u.lng - mLng) * lngScale;
+        double moved = Math.max(0, Math.sqrt(dx * dx + dy * dy) -
+                Math.sqrt(mVariance) - u.accuracy);
+        if (moved / dtSeconds > MAX_SPEED_MPS) {
+            if (++mRejectStreak < MAX_REJECT_STREAK) {
+                return null;
+            }
+            Log.d(TAG, "too many implausible fixes; restarting filter");
+            reset(u);
+            return u;
+        }
+        mRejectStreak = 0;
+
+        // Predict, then update with the fix.
+        double variance = mVariance + STILL_PROCESS_NOISE * dtSeconds + moved * moved;
+        double gain = variance / (variance + (double) u.accuracy * u.accuracy);
+        mLat += gain * (u.lat - mLat);
+        mLng += gain * (u.lng - mLng);
+        mVariance = (1 - gain) * variance;
+        mTime = u.time;
+        return new LocationUpdate(u.source, u.time, mLat, mLng, (float) Math.sqrt(mVariance),
+                u.transition, u.label);
+    }
+
+    private void reset(LocationUpdate u) {
+        mTime = u.time;
+        mLat = u.lat;
+        mLng = u.lng;
+        mVariance = (double) u.accuracy * u.accuracy;
+        mRejectStreak = 0;
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putLong(Preferences.FILTER_TIME_PREF_KEY.val, mTime)
+                .putLong(Preferences.FILTER_LAT_PREF_KEY.val, Double.doubleToRawLongBits(mLat))
+                .putLong(Preferences.FILTER_LNG_PREF_KEY.val, Double.doubleToRawLongBits(mLng))
+                .putLong(Preferences.FILTER_VARIANCE_PREF_KEY.val,
+                        Double.doubleToRawLongBits(mVariance))
+                .putInt(Preferences.FILTER_REJECT_STREAK_PREF_KEY.val, mRejectStreak)
+                .apply();
+    }
+}
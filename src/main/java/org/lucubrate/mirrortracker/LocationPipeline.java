@@ -0,0 +1,144 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processes location broadcasts off the main thread.
+ * <p>
+ * Receivers hand their intent to {@link #process} along with a {@link BroadcastReceiver#goAsync()}
+ * result and return immediately.  Broadcasts then run through the validate, log, polygon geofence,
+ * fix scheduling, geocode and write stages on a single bounded background thread, in arrival
+ * order.  The broadcast is kept alive
+ * until the write is finished or {@link #DEADLINE_MS} passes, whichever comes first.
+ */
+final class LocationPipeline {
+    private static final String TAG = "LocationPipeline";
+
+    /**
+     * How long a broadcast may be kept alive.  Must stay below the system's 10s broadcast timeout.
+     */
+    final private static long DEADLINE_MS = 9 * 1000;
+    final private static int MAX_QUEUED_BROADCASTS = 32;
+
+    /**
+     * Receiver specific pipeline stages.
+     * @param <T> parsed broadcast type
+     */
+    interface Source<T> {
+        /** Validate stage: @return parsed broadcast, or null if it should be dropped. */
+        @Nullable
+        T validate(Intent intent);
+
+        /** Log stage: records broadcast in the debug log. */
+        void log(DebugLog log, T broadcast);
+
+        /** @return location updates carried by broadcast, in time order */
+        List<LocationUpdate> updates(Context context, T broadcast);
+    }
+
+    private static LocationPipeline mPipeline;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mDeadlines;
+
+    /** Gets singleton instance of LocationPipeline. */
+    static synchronized LocationPipeline getInstance() {
+        if (mPipeline == null) {
+            mPipeline = new LocationPipeline();
+        }
+        return mPipeline;
+    }
+
+    private LocationPipeline() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_BROADCASTS));
+        mDeadlines = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Runs intent through the pipeline in the background, finishing result once done.
+     * @param context receiver context
+     */
+    <T> void process(Context context, Intent intent, BroadcastReceiver.PendingResult result,
+                     Source<T> source) {
+        Context appContext = context.getApplicationContext();
+        Completion completion = new Completion(result);
+        completion.deadline = mDeadlines.schedule(() -> {
+            Log.w(TAG, "deadline passed before location was written");
+            completion.finish();
+        }, DEADLINE_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            mExecutor.execute(() -> run(appContext, intent, source, completion));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "pipeline full; dropping broadcast");
+            completion.finish();
+        }
+    }
+
+    private <T> void run(Context context, Intent intent, Source<T> source, Completion completion) {
+        T broadcast = source.validate(intent);
+        if (broadcast == null) {
+            completion.finish();
+            return;
+        }
+
+        source.log(DebugLog.getInstance(context.getFilesDir()), broadcast);
+
+        List<LocationUpdate> updates = source.updates(context, broadcast);
+        if (updates.isEmpty()) {
+            Log.d(TAG, "location unavailable");
+            completion.finish();
+            return;
+        }
+        updates = PolygonGeofenceEvaluator.getInstance(context).evaluate(updates);
+        FixScheduler.getInstance(context).onUpdates(updates);
+
+        FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
+        if (u == null) {
+            Log.e(TAG, "no firebase user for which to update location");
+            completion.finish();
+            return;
+        }
+        FirebaseDB.getInstance(u.getUid(), null).submitLocations(
+                context, updates, committed -> completion.finish());
+    }
+
+    /** Finishes a broadcast exactly once, whether by write completion or deadline. */
+    private static final class Completion {
+        private final BroadcastReceiver.PendingResult mResult;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+        volatile ScheduledFuture<?> deadline;
+
+        Completion(BroadcastReceiver.PendingResult result) {
+            mResult = result;
+        }
+
+        void finish() {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            mResult.finish();
+        }
+    }
+}
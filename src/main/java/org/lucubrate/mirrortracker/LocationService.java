@@ -7,21 +7,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.location.Address;
 import android.location.Geocoder;
 import android.location.Location;
 import android.os.Binder;
 import android.os.IBinder;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.JobIntentService;
 import android.util.Log;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.GeofencingClient;
 import com.google.android.gms.location.GeofencingRequest;
-import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.Priority;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
@@ -44,37 +41,35 @@ import static com.google.android.gms.location.Geofence.NEVER_EXPIRE;
  * model reads/writes.  Since Android O though, that's no longer possible, so location tracking is
  * delegated to {@link FusedLocationReceiver} and {@link GeofenceReceiver}.  Data flow is:
  * (system location updates) --broadcast--> (FusedLocationReceiver|GeofenceReceiver) --call-->
- * FirebaseDB --servicestart--> LocationService.
+ * FirebaseDB --{@link LocationBus}--> (LocationService|SignedInActivity).
  */
-public class LocationService extends JobIntentService implements FirebaseDbObserver {
+public class LocationService extends JobIntentService
+        implements FirebaseDbObserver, LocationBus.Subscriber, GeofenceWindow.Listener,
+        ConnectivityMonitor.Listener {
     final private static String TAG = "LocationService";
 
-    /**
-     * Key for parceled {@link Location} object posted to {@link LocationService} (if running) after
-     * writing location to Firebase DB.
-     */
-    static final String LOCATION_DATA_EXTRA = "org.lucubrate.mirrortracker.LOCATION_DATA_EXTRA";
-
-    /**
-     * Key for parceled {@link Address} object posted to {@link LocationService} (if running) after
-     * writing location to Firebase DB.
-     */
-    static final String RESULT_DATA_KEY =  "org.lucubrate.mirrortracker.RESULT_DATA_KEY";
-
     private SharedPreferences mPrefs;
     private LocationEvent mLastLocation;
     private FirebaseDbObserver mActivity;
     private FirebaseDB mDB;
-    private List<Geofence> mGeofences;
     private DebugLog mDebugLog;
     private PendingIntent mGeofencePendingIntent;
-    private PendingIntent mFusedLocationPendingIntent;
     private GeofencingClient mGeofencingClient;
 
     private boolean mShowPrivateInfo;
+    // Whether mShowPrivateInfo and mMemo hold values from the db or the user, not defaults.
+    private boolean mShowPrivateInfoLoaded;
+    private boolean mMemoLoaded;
+    // Whether the next geofence sync re-registers every geofence; see GeofenceSync.
+    private boolean mFullGeofenceSync = true;
+    // Whether the geofence window center has been looked up; see GeofenceWindow#needsCenter.
+    private boolean mWindowSeeded;
 
     private String mMemo;
 
+    // Keeps the db online while SignedInActivity is bound, so its config listeners sync.
+    @Nullable private FirebaseConnection.Lease mBoundLease;
+
     /** Whether this service is active. */
     static boolean started = false;
 
@@ -83,7 +78,7 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
     }
 
     void setDebugLogWriteOberver(DebugLogWriteObserver o) {
-        mDebugLog.setObserver(o);
+        mDebugLog.setObserver(o, getMainExecutor());
     }
 
     @Override
@@ -94,6 +89,8 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
 
         mDebugLog = DebugLog.getInstance(this.getFilesDir());
         mDebugLog.logServiceStarted();
+        LocationBus.getInstance().subscribe(this, getMainExecutor());
+        GeofenceWindow.getInstance(this).setListener(this, getMainExecutor());
 
         // Don't bother running service if not auth'ed.  We can't update the DB in that case.
         FirebaseUser u = FirebaseAuth.getInstance().getCurrentUser();
@@ -105,6 +102,8 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         mPrefs = getSharedPreferences(Preferences.PREFERENCE_FILE_NAME.val, MODE_PRIVATE);
         mDB = FirebaseDB.getInstance(u.getUid(), this);
         mDB.setLocationService(this);
+        mDB.flushQueue(this);
+        ConnectivityMonitor.getInstance(this).addListener(this, getMainExecutor());
 
         updateLocationTracking();
     }
@@ -113,23 +112,6 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
     public int onStartCommand(Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
         Log.d(TAG, "onStartCommand");
-
-        // Handle start commands from FirebaseDB, which notify of updated user locations.
-        if (intent != null && intent.hasExtra(RESULT_DATA_KEY) && intent.hasExtra(LOCATION_DATA_EXTRA)) {
-            Address address = intent.getParcelableExtra(RESULT_DATA_KEY, Address.class);
-            Location location = intent.getParcelableExtra(LOCATION_DATA_EXTRA, Location.class);
-            if (address != null && location != null) {
-                mLastLocation = new LocationEvent(
-                        location.getTime(), address.getLocality(), address.getAdminArea(),
-                        address.getCountryName(), location.getLatitude(),
-                        location.getLongitude(), "");
-                Log.d(TAG, "got updated location from FirebaseDB");
-                if (mActivity != null) {
-                    mActivity.onLocationUpdated(mLastLocation);
-                }
-            }
-        }
-
         return START_STICKY;
     }
 
@@ -159,25 +141,34 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         Log.i(TAG, "destroying LocationService");
         started = false;
         mDebugLog.logServiceStopped();
+        mDebugLog.setObserver(null, null);
+        // The process may be killed soon after the service goes.
+        mDebugLog.flush();
+        LocationBus.getInstance().unsubscribe(this);
+        GeofenceWindow.getInstance(this).setListener(null, null);
+        ConnectivityMonitor.getInstance(this).removeListener(this);
+        mDB.flushMemo();
         mDB.setLocationService(null);
         super.onDestroy();
     }
 
     @Override
     public void onGeofencesUpdated(List<Geofence> geofences) {
-        removeGeofences();
-        mGeofences = geofences;
+        // Already indexed by FirebaseDB; see syncGeofences.
         if (shouldTrackLocation()) {
-            addGeofences();
+            syncGeofences();
         }
     }
 
-    /** Whether the service is in a state in which it can mutate GMS geofence state. */
-    private boolean cantUpdateGeofences() {
-        if (mGeofences == null || mGeofences.isEmpty()) {
-            return true;
+    @Override
+    public void onWindowMoved() {
+        if (shouldTrackLocation()) {
+            syncGeofences();
         }
+    }
 
+    /** Whether the service is in a state in which it can mutate GMS geofence state. */
+    private boolean cantUpdateGeofences() {
         if (getPackageManager().checkPermission(
                 Manifest.permission.ACCESS_FINE_LOCATION, getPackageName()) !=
                 PackageManager.PERMISSION_GRANTED) {
@@ -187,20 +178,87 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         return false;
     }
 
+    /**
+     * Brings GMS geofences in line with the current {@link GeofenceWindow} over
+     * {@link GeofenceIndex}, only adding and removing geofences that changed.  Re-registering
+     * unchanged geofences would cause spurious initial enter events.
+     */
+    private void syncGeofences() {
+        // Geofences not yet read from db.
+        if (!GeofenceIndex.getInstance().isLoaded() || cantUpdateGeofences()) {
+            return;
+        }
+        if (!mWindowSeeded &&
+                GeofenceWindow.getInstance(this).needsCenter(GeofenceIndex.getInstance())) {
+            seedGeofenceWindow();
+            return;
+        }
+        List<Geofence> window =
+                GeofenceWindow.getInstance(this).select(GeofenceIndex.getInstance());
+        GeofenceSync sync = GeofenceSync.getInstance(this);
+        if (mFullGeofenceSync) {
+            mFullGeofenceSync = false;
+            // Geofences re-added with the same id replace the old ones, so only remove the rest.
+            List<String> stale = sync.registeredLabels();
+            for (Geofence g : window) {
+                stale.remove(g.label);
+            }
+            if (!stale.isEmpty()) {
+                getGeofencingClient().removeGeofences(stale);
+            }
+            sync.clear();
+        }
+        GeofenceSync.Diff diff = sync.diff(window);
+        if (diff.isEmpty()) {
+            Log.d(TAG, "geofences unchanged");
+            return;
+        }
+        if (!diff.removed.isEmpty()) {
+            getGeofencingClient().removeGeofences(diff.removed);
+            Log.d(TAG, "removed geofences " + diff.removed.size());
+        }
+        sync.commit(diff);
+        addGeofences(diff.added);
+    }
+
+    /**
+     * Centers the geofence window on the last known location, if there is one, then syncs
+     * geofences.  Permission is checked by the caller.
+     */
+    @SuppressLint("MissingPermission")
+    private void seedGeofenceWindow() {
+        mWindowSeeded = true;
+        LocationServices.getFusedLocationProviderClient(this).getLastLocation()
+                .addOnCompleteListener(task -> {
+                    Location loc = task.isSuccessful() ? task.getResult() : null;
+                    if (loc != null) {
+                        // Syncs geofences through onWindowMoved.
+                        GeofenceWindow.getInstance(this).recenter(
+                                loc.getLatitude(), loc.getLongitude());
+                    } else if (started && shouldTrackLocation()) {
+                        Log.w(TAG, "no last location to center geofence window on");
+                        syncGeofences();
+                    }
+                });
+    }
+
     /** Starts tracking geofences. */
-    private void addGeofences() {
-        if (cantUpdateGeofences()) {
+    private void addGeofences(List<Geofence> geofences) {
+        if (geofences.isEmpty()) {
             return;
         }
-        Log.d(TAG, "adding geofences " + mGeofences.size());
+        Log.d(TAG, "adding geofences " + geofences.size());
 
-        List<com.google.android.gms.location.Geofence> fences = new ArrayList<>(mGeofences.size());
-        for (Geofence fence : mGeofences) {
+        List<com.google.android.gms.location.Geofence> fences = new ArrayList<>(geofences.size());
+        for (Geofence fence : geofences) {
             fences.add(new com.google.android.gms.location.Geofence.Builder()
                     .setRequestId(fence.label)
                     .setCircularRegion(fence.lat, fence.lng, fence.radius)
                     .setExpirationDuration(NEVER_EXPIRE)
-                    .setTransitionTypes(GEOFENCE_TRANSITION_ENTER | GEOFENCE_TRANSITION_EXIT)
+                    // Internal geofences only care about exits, and mustn't trigger initial enters.
+                    .setTransitionTypes(Geofence.isInternal(fence.label) ?
+                            GEOFENCE_TRANSITION_EXIT :
+                            GEOFENCE_TRANSITION_ENTER | GEOFENCE_TRANSITION_EXIT)
                     .build());
         }
         GeofencingRequest fenceReq = new GeofencingRequest.Builder()
@@ -211,23 +269,28 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         try {
             getGeofencingClient().addGeofences(fenceReq, getGeofencePendingIntent())
                     .addOnSuccessListener(aVoid -> Log.d(TAG, "successfully added geofences"))
-                    .addOnFailureListener(e -> Log.d(TAG, "geofence add failed " + e));
+                    .addOnFailureListener(e -> {
+                        Log.d(TAG, "geofence add failed " + e);
+                        GeofenceSync.getInstance(this).forget(geofences);
+                    });
         } catch (SecurityException e) {
-            // Should never happen.  Permission checked in canUpdateGeofences.
+            // Should never happen.  Permission checked in cantUpdateGeofences.
             Log.d(TAG, "geofence security exception");
+            GeofenceSync.getInstance(this).forget(geofences);
         }
     }
 
-    /** Stop tracking geofences. */
+    /** Stop tracking all geofences. */
     private void removeGeofences() {
         if (cantUpdateGeofences()) {
             return;
         }
-        List<String> labels = new ArrayList<>(mGeofences.size());
-        for (Geofence f : mGeofences) {
-            labels.add(f.label);
+        GeofenceSync sync = GeofenceSync.getInstance(this);
+        List<String> labels = sync.registeredLabels();
+        if (!labels.isEmpty()) {
+            getGeofencingClient().removeGeofences(labels);
         }
-        getGeofencingClient().removeGeofences(labels);
+        sync.clear();
         Log.d(TAG, "removed geofences " + labels.size());
     }
 
@@ -239,15 +302,9 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
     }
 
     private PendingIntent getGeofencePendingIntent() {
-        if (mGeofencePendingIntent != null) {
-            return mGeofencePendingIntent;
+        if (mGeofencePendingIntent == null) {
+            mGeofencePendingIntent = GeofenceReceiver.getPendingIntent(this);
         }
-        final Intent intent = new Intent();
-        intent.setClass(this, GeofenceReceiver.class);
-        intent.setAction(GeofenceReceiver.GEOFENCE_INTENT_ACTION);
-        mGeofencePendingIntent = PendingIntent.getBroadcast(
-                getApplicationContext(), 0, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
         return mGeofencePendingIntent;
     }
 
@@ -268,38 +325,15 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         }
         Log.i(TAG, "starting tracking");
 
-        addGeofences();
-
-        LocationRequest req =
-                new LocationRequest.Builder(20 * 60 * 1000)  // try to update at least every 20 minutes
-                .setPriority(Priority.PRIORITY_BALANCED_POWER_ACCURACY )
-                .setMinUpdateDistanceMeters(15)  // no updates for deltas < 15 meters.
-                .build();
-
-        FusedLocationProviderClient client =
-                LocationServices.getFusedLocationProviderClient(getApplicationContext());
-        client.requestLocationUpdates(req, getFusedLocationPendingIntent());
+        syncGeofences();
+        // Fix interval and accuracy then adapt to distance from the nearest geofence boundary.
+        FixScheduler.getInstance(this).start();
     }
 
     void stopTrackingLocation() {
         Log.i(TAG, "stopping tracking");
         removeGeofences();
-        FusedLocationProviderClient client =
-                LocationServices.getFusedLocationProviderClient(getApplicationContext());
-        client.removeLocationUpdates(getFusedLocationPendingIntent());
-    }
-
-    private PendingIntent getFusedLocationPendingIntent() {
-        if (mFusedLocationPendingIntent != null) {
-            return mFusedLocationPendingIntent;
-        }
-        final Intent intent = new Intent();
-        intent.setClass(this, FusedLocationReceiver.class);
-        intent.setAction(FusedLocationReceiver.LOCATION_INTENT_ACTION);
-        mFusedLocationPendingIntent = PendingIntent.getBroadcast(
-                getApplicationContext(), 0, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
-        return mFusedLocationPendingIntent;
+        FixScheduler.getInstance(this).stop();
     }
 
     private boolean shouldTrackLocation() {
@@ -314,7 +348,20 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
 
     @Override
     public void onLocationUpdated(LocationEvent e) {
-        // Do nothing -- UI already updated directly from FirebaseDB callback in #onStartCommand.
+        Log.d(TAG, "got updated location from FirebaseDB");
+        mLastLocation = e;
+        GeofenceWindow window = GeofenceWindow.getInstance(this);
+        if (window.isOutside(e.lat, e.lng)) {
+            window.recenter(e.lat, e.lng);
+        }
+    }
+
+    @Override
+    public void onConnectivityChanged(ConnectivityMonitor.Snapshot snapshot) {
+        if (snapshot.connected && mDB != null) {
+            // Send updates queued while offline now, rather than with the next fix.
+            mDB.flushQueue(this);
+        }
     }
 
     LocationEvent getLastLocation() {
@@ -323,12 +370,14 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
 
     void updateShowPrivateInfo(boolean show) {
         mShowPrivateInfo = show;
+        mShowPrivateInfoLoaded = true;
         mDB.updateShowPrivateInfo(show);
     }
 
     @Override
     public void onShowPrivateInfoUpdated(boolean show) {
         mShowPrivateInfo = show;
+        mShowPrivateInfoLoaded = true;
         if (mActivity != null) {
             mActivity.onShowPrivateInfoUpdated(show);
         }
@@ -338,14 +387,21 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         return mShowPrivateInfo;
     }
 
+    /** Whether {@link #showPrivateInfo()} has been loaded from the db, or set. */
+    boolean isShowPrivateInfoLoaded() {
+        return mShowPrivateInfoLoaded;
+    }
+
     void updateMemo(String memo) {
         mMemo = memo;
+        mMemoLoaded = true;
         mDB.updateMemo(memo);
     }
 
     @Override
     public void onMemoUpdated(String memo) {
         mMemo = memo;
+        mMemoLoaded = true;
         if (mActivity != null) {
             mActivity.onMemoUpdated(memo);
         }
@@ -355,6 +411,11 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         return mMemo;
     }
 
+    /** Whether {@link #memo()} has been loaded from the db, or set. */
+    boolean isMemoLoaded() {
+        return mMemoLoaded;
+    }
+
     // Only running on my fast phone, so synchronous IO is fine.
     @SuppressLint("ApplySharedPref")
     void updateShareLocation(boolean share) {
@@ -369,11 +430,8 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
         return mPrefs.getBoolean(Preferences.SHARE_LOCATION_PREF_KEY.val, true);
     }
 
-    List<String> debugLogLines() {
-        if (mDebugLog != null) {
-            return mDebugLog.getLogLines();
-        }
-        return new ArrayList<>();
+    DebugLog debugLog() {
+        return mDebugLog;
     }
 
     class LocalBinder extends Binder {
@@ -384,7 +442,30 @@ public class LocationService extends JobIntentService implements FirebaseDbObser
 
     @Override
     public IBinder onBind(@NonNull Intent intent) {
+        acquireBoundLease();
         return mBinder;
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        acquireBoundLease();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (mBoundLease != null) {
+            mBoundLease.release();
+            mBoundLease = null;
+        }
+        // The binder is cached while the service runs, so later binds only get onRebind.
+        return true;
+    }
+
+    private void acquireBoundLease() {
+        // Only once the db is set up; see FirebaseConnection#getInstance.
+        if (mDB != null && mBoundLease == null) {
+            mBoundLease = FirebaseConnection.getInstance().acquire("activity", 0);
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+package org.lucubrate.mirrortracker;
+
+import android.location.Location;
+import androidx.annotation.NonNull;
+
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
+
+/**
+ * A not-yet-geocoded location fix received by {@link FusedLocationReceiver} or
+ * {@link GeofenceReceiver}.
+ */
+final class LocationUpdate {
+    static final int SOURCE_FUSED = 0;
+    static final int SOURCE_GEOFENCE = 1;
+
+    /** No geofence transition; used for fused location fixes. */
+    static final int TRANSITION_NONE = 0;
+
+    /** One of the SOURCE_* constants. */
+    final int source;
+    final long time;
+    final double lat;
+    final double lng;
+    /** Horizontal accuracy radius in meters, or 0 if unknown. */
+    final float accuracy;
+    /** TRANSITION_NONE, or a GMS GEOFENCE_TRANSITION_* constant. */
+    final int transition;
+    /** Triggering geofence label for geofence transitions, otherwise "". */
+    @NonNull final String label;
+
+    LocationUpdate(int source, long time, double lat, double lng, float accuracy, int transition,
+                   @NonNull String label) {
+        this.source = source;
+        this.time = time;
+        this.lat = lat;
+        this.lng = lng;
+        this.accuracy = accuracy;
+        this.transition = transition;
+        this.label = label;
+    }
+
+    static LocationUpdate fromFused(Location loc) {
+        return new LocationUpdate(SOURCE_FUSED, loc.getTime(), loc.getLatitude(),
+                loc.getLongitude(), loc.hasAccuracy() ? loc.getAccuracy() : 0, TRANSITION_NONE,
+                "");
+    }
+
+    static LocationUpdate fromGeofence(Location loc, int transition, @NonNull String label) {
+        return new LocationUpdate(SOURCE_GEOFENCE, loc.getTime(), loc.getLatitude(),
+                loc.getLongitude(), loc.hasAccuracy() ? loc.getAccuracy() : 0, transition, label);
+    }
+
+    /** Whether this update is a geofence enter/exit, which must never be collapsed away. */
+    boolean isTransition() {
+        return transition == GEOFENCE_TRANSITION_ENTER || transition == GEOFENCE_TRANSITION_EXIT;
+    }
+}
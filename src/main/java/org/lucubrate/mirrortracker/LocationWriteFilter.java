@@ -0,0 +1,97 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+
+/**
+ * Decides whether a geocoded location is worth writing to the db.
+ * <p>
+ * A location is written only if it's newer than the last committed location, and either its
+ * city/state/country/label differ from it, it's at least
+ * {@link Preferences#WRITE_MIN_DISTANCE_PREF_KEY} meters away from it, or
+ * {@link Preferences#WRITE_HEARTBEAT_PREF_KEY} ms have passed since it.  The last committed
+ * location is held in memory and mirrored to shared preferences so the check survives process
+ * death without a db read.
+ */
+final class LocationWriteFilter {
+    final private static float DEFAULT_MIN_DISTANCE_METERS = 500;
+    final private static long DEFAULT_HEARTBEAT_MS = 60 * 60 * 1000;
+
+    private static LocationWriteFilter mFilter;
+
+    private final SharedPreferences mPrefs;
+    @Nullable private LocationEvent mLastCommitted;
+
+    /** Gets singleton instance of LocationWriteFilter. */
+    static synchronized LocationWriteFilter getInstance(Context context) {
+        if (mFilter == null) {
+            mFilter = new LocationWriteFilter(context.getApplicationContext());
+        }
+        return mFilter;
+    }
+
+    private LocationWriteFilter(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+        if (mPrefs.contains(Preferences.LAST_LOCATION_TIMESTAMP_PREF_KEY.val)) {
+            mLastCommitted = new LocationEvent(
+                    mPrefs.getLong(Preferences.LAST_LOCATION_TIMESTAMP_PREF_KEY.val, 0),
+                    mPrefs.getString(Preferences.LAST_LOCATION_CITY_PREF_KEY.val, null),
+                    mPrefs.getString(Preferences.LAST_LOCATION_STATE_PREF_KEY.val, null),
+                    mPrefs.getString(Preferences.LAST_LOCATION_COUNTRY_PREF_KEY.val, null),
+                    Double.longBitsToDouble(
+                            mPrefs.getLong(Preferences.LAST_LOCATION_LAT_PREF_KEY.val, 0)),
+                    Double.longBitsToDouble(
+                            mPrefs.getLong(Preferences.LAST_LOCATION_LNG_PREF_KEY.val, 0)),
+                    mPrefs.getString(Preferences.LAST_LOCATION_LABEL_PREF_KEY.val, null));
+        }
+    }
+
+    /** Whether e differs enough from the last committed location to be written. */
+    synchronized boolean shouldWrite(LocationEvent e) {
+        LocationEvent last = mLastCommitted;
+        if (last == null) {
+            return true;
+        }
+        if (e.timestamp <= last.timestamp) {
+            // A late fix mustn't overwrite a newer location.
+            return false;
+        }
+        if (!Objects.equals(last.city, e.city) || !Objects.equals(last.state, e.state) ||
+                !Objects.equals(last.country, e.country) ||
+                !Objects.equals(last.label, e.label)) {
+            return true;
+        }
+        if (e.timestamp - last.timestamp >=
+                mPrefs.getLong(Preferences.WRITE_HEARTBEAT_PREF_KEY.val, DEFAULT_HEARTBEAT_MS)) {
+            return true;
+        }
+        float[] distance = new float[1];
+        Location.distanceBetween(last.lat, last.lng, e.lat, e.lng, distance);
+        return distance[0] >= mPrefs.getFloat(
+                Preferences.WRITE_MIN_DISTANCE_PREF_KEY.val, DEFAULT_MIN_DISTANCE_METERS);
+    }
+
+    /** Records e as the last location acknowledged by the db. */
+    synchronized void onCommitted(LocationEvent e) {
+        if (mLastCommitted != null && mLastCommitted.timestamp > e.timestamp) {
+            return;
+        }
+        mLastCommitted = e;
+        mPrefs.edit()
+                .putLong(Preferences.LAST_LOCATION_TIMESTAMP_PREF_KEY.val, e.timestamp)
+                .putString(Preferences.LAST_LOCATION_CITY_PREF_KEY.val, e.city)
+                .putString(Preferences.LAST_LOCATION_STATE_PREF_KEY.val, e.state)
+                .putString(Preferences.LAST_LOCATION_COUNTRY_PREF_KEY.val, e.country)
+                .putLong(Preferences.LAST_LOCATION_LAT_PREF_KEY.val,
+                        Double.doubleToRawLongBits(e.lat))
+                .putLong(Preferences.LAST_LOCATION_LNG_PREF_KEY.val,
+                        Double.doubleToRawLongBits(e.lng))
+                .putString(Preferences.LAST_LOCATION_LABEL_PREF_KEY.val, e.label)
+                .apply();
+    }
+}
@@ -0,0 +1,136 @@
+package org.lucubrate.mirrortracker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Objects;
+
+/**
+ * Two-way sync of the memo between local edits and the db.
+ * <p>
+ * Local edits are debounced: each edit restarts a {@link #IDLE_MS} timer, and only the newest
+ * text is written once it fires, so typing a sentence costs one write.  Local and remote changes
+ * are tracked by revision.  While the user is mid-edit, i.e. an edit is waiting for the timer or
+ * a write hasn't been acknowledged, remote values are held back rather than clobbering the text
+ * being typed.  A held remote value is dropped when a write is sent, as the write supersedes it
+ * in the db; one that arrives after the write is newer, and is applied once the write is
+ * acknowledged.
+ * <p>
+ * Must be used from the main thread, where db callbacks run.
+ */
+final class MemoSync {
+    private static final String TAG = "MemoSync";
+    final private static long IDLE_MS = 1500;
+
+    /** Gets the memo whenever it changes remotely. */
+    interface Listener {
+        void onMemoUpdated(String memo);
+    }
+
+    private final DatabaseReference mRef;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlush = this::flush;
+
+    private String mMemo = "";
+    // Revision of the newest local edit, the newest one written, and the newest one acknowledged.
+    private long mLocalRevision;
+    private long mWrittenRevision;
+    private long mAckedRevision;
+    // Number of remote values seen, for logging.
+    private long mRemoteRevision;
+    // Remote value held back while mid-edit, if any.
+    @Nullable private String mHeldRemote;
+    // Whether the listener has been given a value yet.
+    private boolean mReported;
+
+    MemoSync(DatabaseReference ref, Listener listener) {
+        mRef = ref;
+        mListener = listener;
+        ref.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                String memo = snapshot.getValue(String.class);
+                onRemote(memo == null ? "" : memo);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.w(TAG, "Failed to read value.", error.toException());
+            }
+        });
+    }
+
+    /** @return current memo, including edits not yet written */
+    String memo() {
+        return mMemo;
+    }
+
+    /** Records a local edit, to be written once edits pause. */
+    void edit(String memo) {
+        if (memo.equals(mMemo)) {
+            return;
+        }
+        mMemo = memo;
+        mLocalRevision++;
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, IDLE_MS);
+    }
+
+    /** Writes any pending local edit now. */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (mWrittenRevision == mLocalRevision) {
+            return;
+        }
+        long revision = mLocalRevision;
+        mWrittenRevision = revision;
+        mHeldRemote = null;
+        FirebaseConnection.Lease lease = FirebaseConnection.getInstance()
+                .acquire("memo write", FirebaseConnection.WRITE_WINDOW_MS);
+        mRef.setValue(mMemo).addOnCompleteListener(task -> {
+            lease.release();
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "failed to write memo revision " + revision, task.getException());
+            }
+            mAckedRevision = Math.max(mAckedRevision, revision);
+            if (!isEditing() && mHeldRemote != null) {
+                String held = mHeldRemote;
+                mHeldRemote = null;
+                apply(held);
+            }
+        });
+    }
+
+    private boolean isEditing() {
+        return mLocalRevision != mAckedRevision;
+    }
+
+    private void onRemote(String memo) {
+        mRemoteRevision++;
+        if (isEditing()) {
+            Log.d(TAG, "holding remote memo revision " + mRemoteRevision + " while editing");
+            mHeldRemote = memo;
+            return;
+        }
+        apply(memo);
+    }
+
+    private void apply(String memo) {
+        if (mReported && Objects.equals(memo, mMemo)) {
+            return;
+        }
+        mReported = true;
+        mMemo = memo;
+        mListener.onMemoUpdated(memo);
+    }
+}
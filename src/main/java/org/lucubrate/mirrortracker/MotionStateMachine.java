@@ -0,0 +1,175 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Infers whether the device is stationary, walking or driving from the recent fix stream.
+ * <p>
+ * {@link FusedLocationReceiver} feeds it every fix that passes {@link LocationFilter}, before
+ * {@link TrajectoryCompressor} thins them out.
+ * <p>
+ * Fixes from the last {@link #WINDOW_MS} are kept in a sliding window, persisted to shared
+ * preferences since fixes arrive in short-lived broadcasts.  The device is stationary if the window
+ * spans at least {@link #STATIONARY_SPAN_MS} and no fix in it is further than
+ * {@link #STATIONARY_RADIUS_METERS} from the newest, once accuracy is discounted.  Otherwise
+ * it's walking or driving depending on the fastest speed between consecutive fixes.
+ */
+final class MotionStateMachine {
+    private static final String TAG = "MotionStateMachine";
+
+    enum State {
+        STATIONARY,
+        WALKING,
+        DRIVING
+    }
+
+    final private static long WINDOW_MS = 30 * 60 * 1000;
+    final private static long STATIONARY_SPAN_MS = 20 * 60 * 1000;
+    final private static double STATIONARY_RADIUS_METERS = 50;
+    /** Speed above which the device is assumed to be in a vehicle; about 25 km/h. */
+    final private static double DRIVING_SPEED_MPS = 7;
+    /** Fixes less accurate than this say nothing useful about small movements. */
+    final private static float MAX_ACCURACY_METERS = 100;
+    final private static int MAX_WINDOW_SIZE = 64;
+
+    private static MotionStateMachine mMachine;
+
+    private final SharedPreferences mPrefs;
+    // Oldest first.
+    private final ArrayDeque<LocationUpdate> mWindow = new ArrayDeque<>();
+    private State mState = State.WALKING;
+    private double mSpeed;
+
+    /** Gets singleton instance of MotionStateMachine. */
+    static synchronized MotionStateMachine getInstance(Context context) {
+        if (mMachine == null) {
+            mMachine = new MotionStateMachine(context.getApplicationContext());
+        }
+        return mMachine;
+    }
+
+    private MotionStateMachine(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+        load();
+        classify();
+    }
+
+    /**
+     * Adds fixes to the window and reclassifies.
+     * @param updates time-ordered location updates
+     * @return new state
+     */
+    synchronized State update(List<LocationUpdate> updates) {
+        for (LocationUpdate u : updates) {
+            if (u.accuracy > MAX_ACCURACY_METERS ||
+                    (!mWindow.isEmpty() && u.time <= mWindow.peekLast().time)) {
+                continue;
+            }
+            mWindow.addLast(u);
+        }
+        if (!mWindow.isEmpty()) {
+            long cutoff = mWindow.peekLast().time - WINDOW_MS;
+            while (mWindow.size() > MAX_WINDOW_SIZE || mWindow.peekFirst().time < cutoff) {
+                mWindow.removeFirst();
+            }
+        }
+        State previous = mState;
+        classify();
+        if (mState != previous) {
+            Log.i(TAG, previous + " -> " + mState);
+        }
+        save();
+        return mState;
+    }
+
+    /** Forgets the window, e.g. once the device is known to have moved away from it. */
+    synchronized void reset() {
+        mWindow.clear();
+        mState = State.WALKING;
+        mSpeed = 0;
+        save();
+    }
+
+    synchronized State state() {
+        return mState;
+    }
+
+    /**
+     * @return fastest speed in m/s between consecutive fixes in the window, discounting movement
+     * that could just be accuracy jitter
+     */
+    synchronized double speed() {
+        return mSpeed;
+    }
+
+    private void classify() {
+        mSpeed = 0;
+        LocationUpdate prev = null;
+        for (LocationUpdate u : mWindow) {
+            if (prev != null) {
+                double moved = jitterFreeDistance(prev, u);
+                mSpeed = Math.max(mSpeed, moved / ((u.time - prev.time) / 1000.0));
+            }
+            prev = u;
+        }
+
+        if (mWindow.size() >= 2 &&
+                mWindow.peekLast().time - mWindow.peekFirst().time >= STATIONARY_SPAN_MS) {
+            LocationUpdate newest = mWindow.peekLast();
+            boolean still = true;
+            for (LocationUpdate u : mWindow) {
+                if (jitterFreeDistance(u, newest) > STATIONARY_RADIUS_METERS) {
+                    still = false;
+                    break;
+                }
+            }
+            if (still) {
+                mState = State.STATIONARY;
+                return;
+            }
+        }
+        mState = mSpeed > DRIVING_SPEED_MPS ? State.DRIVING : State.WALKING;
+    }
+
+    private static double jitterFreeDistance(LocationUpdate a, LocationUpdate b) {
+        return Math.max(0, GeofenceIndex.distanceMeters(a.lat, a.lng, b.lat, b.lng) -
+                a.accuracy - b.accuracy);
+    }
+
+    // Window is stored as "time,lat,lng,accuracy" entries separated by ';'.
+    private void save() {
+        StringBuilder sb = new StringBuilder();
+        for (LocationUpdate u : mWindow) {
+            sb.append(u.time).append(',').append(u.lat).append(',').append(u.lng).append(',')
+                    .append(u.accuracy).append(';');
+        }
+        mPrefs.edit().putString(Preferences.MOTION_WINDOW_PREF_KEY.val, sb.toString()).apply();
+    }
+
+    private void load() {
+        String stored = mPrefs.getString(Preferences.MOTION_WINDOW_PREF_KEY.val, "");
+        List<LocationUpdate> window = new ArrayList<>();
+        try {
+            for (String entry : stored.split(";")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                String[] f = entry.split(",");
+                window.add(new LocationUpdate(LocationUpdate.SOURCE_FUSED, Long.parseLong(f[0]),
+                        Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+                        Float.parseFloat(f[3]), LocationUpdate.TRANSITION_NONE, ""));
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "discarding malformed motion window", e);
+            return;
+        }
+        mWindow.addAll(window);
+    }
+}
@@ -0,0 +1,93 @@
+package org.lucubrate.mirrortracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue of slots.
+ * <p>
+ * A ring of slots, each with a sequence number saying whether it's ready for the producer or the
+ * consumer of a given lap (after Dmitry Vyukov's bounded queue).  Producers claim a slot with one
+ * CAS on the enqueue position; the single consumer needs no atomics beyond reading the sequence.
+ * <p>
+ * The queue only hands out slot indices; callers keep the queued data in their own arrays indexed
+ * by slot, so enqueueing allocates nothing.  A producer fills its claimed slot and then
+ * {@link #publish}es it, which makes the data visible to the consumer.  The consumer reads the
+ * slot it {@link #poll}ed and then {@link #release}s it.
+ */
+final class MpscQueue {
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mEnqueuePos = new AtomicLong();
+    // Only touched by the consumer.
+    private long mDequeuePos;
+
+    /** @param capacity max queued elements; rounded up to a power of two */
+    MpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /** @return number of slots */
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /** @return slot index of ticket */
+    int slot(long ticket) {
+        return (int) ticket & mMask;
+    }
+
+    /**
+     * Claims a slot for a producer.  Safe to call from any thread.
+     * @return ticket to pass to {@link #slot} and {@link #publish}, or -1 if the queue is full
+     */
+    long claim() {
+        long pos = mEnqueuePos.get();
+        while (true) {
+            long diff = mSequences.get(slot(pos)) - pos;
+            if (diff == 0) {
+                if (mEnqueuePos.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = mEnqueuePos.get();
+            } else if (diff < 0) {
+                // Slot still holds an element from the previous lap.
+                return -1;
+            } else {
+                pos = mEnqueuePos.get();
+            }
+        }
+    }
+
+    /** Hands a filled slot to the consumer. */
+    void publish(long ticket) {
+        mSequences.set(slot(ticket), ticket + 1);
+    }
+
+    /**
+     * Takes the oldest published slot.  Must only be called from the consumer thread.
+     * @return ticket of the slot, or -1 if there is none
+     */
+    long poll() {
+        if (isEmpty()) {
+            return -1;
+        }
+        return mDequeuePos;
+    }
+
+    /** Hands a polled slot back to producers.  Must only be called from the consumer thread. */
+    void release(long ticket) {
+        mSequences.set(slot(ticket), ticket + mMask + 1);
+        mDequeuePos = ticket + 1;
+    }
+
+    /** Whether no slot is ready to poll.  Must only be called from the consumer thread. */
+    boolean isEmpty() {
+        return mSequences.get(slot(mDequeuePos)) != mDequeuePos + 1;
+    }
+}
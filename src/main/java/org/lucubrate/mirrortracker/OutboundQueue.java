@@ -0,0 +1,165 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persistent append-only queue of {@link LocationUpdate}s that couldn't be sent because the
+ * network was unavailable.
+ * <p>
+ * Updates are appended to {@value #FILE_NAME}.  {@link #drain()} moves them to an in-flight file
+ * that is only deleted by {@link #commit()} once the batched db write is acknowledged, so a flush
+ * interrupted by process death is retried on the next flush.  Only one drain may be in flight at
+ * a time, as a second would fold new updates into the in-flight file that the first's commit
+ * deletes.
+ */
+final class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+
+    final private static String FILE_NAME = "outbound_queue.bin";
+    final private static String INFLIGHT_FILE_NAME = "outbound_queue.inflight.bin";
+
+    private static OutboundQueue mOutboundQueue;
+
+    private final File mQueueFile;
+    private final File mInflightFile;
+    // Whether a drain hasn't been committed or aborted yet.
+    private boolean mDraining;
+
+    /**
+     * Gets singleton instance of OutboundQueue.
+     * @param fileDir directory to which the queue files will be written
+     */
+    static synchronized OutboundQueue getInstance(File fileDir) {
+        if (mOutboundQueue == null) {
+            mOutboundQueue = new OutboundQueue(fileDir);
+        }
+        return mOutboundQueue;
+    }
+
+    private OutboundQueue(File fileDir) {
+        mQueueFile = new File(fileDir, FILE_NAME);
+        mInflightFile = new File(fileDir, INFLIGHT_FILE_NAME);
+    }
+
+    /** Whether there are queued or in-flight updates. */
+    synchronized boolean isEmpty() {
+        return mQueueFile.length() == 0 && mInflightFile.length() == 0;
+    }
+
+    /** Appends update to the queue. */
+    synchronized void append(LocationUpdate update) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mQueueFile, true)))) {
+            write(out, update);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to queue location update", e);
+        }
+    }
+
+    /**
+     * Moves all queued updates in flight and returns them, collapsed by {@link #collapse(List)}.
+     * Updates left in flight by an earlier drain that was aborted, or interrupted by process
+     * death, are included.  Must be followed by {@link #commit()} or {@link #abort()}.
+     * @return updates, or null if an earlier drain is still in flight
+     */
+    @Nullable
+    synchronized List<LocationUpdate> drain() {
+        if (mDraining) {
+            return null;
+        }
+        mDraining = true;
+        List<LocationUpdate> updates = new ArrayList<>();
+        read(mInflightFile, updates);
+        read(mQueueFile, updates);
+        updates = collapse(updates);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mInflightFile)))) {
+            for (LocationUpdate u : updates) {
+                write(out, u);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write in-flight updates", e);
+            // Leave queue file in place so nothing is lost.
+            return updates;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mQueueFile.delete();
+        return updates;
+    }
+
+    /** Discards in-flight updates after they've been written to the db. */
+    synchronized void commit() {
+        //noinspection ResultOfMethodCallIgnored
+        mInflightFile.delete();
+        mDraining = false;
+    }
+
+    /** Keeps in-flight updates, to be retried by the next drain, after a failed db write. */
+    synchronized void abort() {
+        mDraining = false;
+    }
+
+    /**
+     * Drops superseded fixes: only geofence transitions and the newest update are kept.
+     * @return kept updates, in time order
+     */
+    static List<LocationUpdate> collapse(List<LocationUpdate> updates) {
+        if (updates.isEmpty()) {
+            return updates;
+        }
+        List<LocationUpdate> sorted = new ArrayList<>(updates);
+        Collections.sort(sorted, Comparator.comparingLong(u -> u.time));
+        LocationUpdate newest = sorted.get(sorted.size() - 1);
+        List<LocationUpdate> kept = new ArrayList<>();
+        for (LocationUpdate u : sorted) {
+            if (u.isTransition() || u == newest) {
+                kept.add(u);
+            }
+        }
+        return kept;
+    }
+
+    private static void write(DataOutputStream out, LocationUpdate u) throws IOException {
+        out.writeByte(u.source);
+        out.writeLong(u.time);
+        out.writeDouble(u.lat);
+        out.writeDouble(u.lng);
+        out.writeFloat(u.accuracy);
+        out.writeByte(u.transition);
+        out.writeUTF(u.label);
+    }
+
+    private static void read(File file, List<LocationUpdate> updates) {
+        if (!file.canRead() || file.length() == 0) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                updates.add(new LocationUpdate(in.readByte(), in.readLong(), in.readDouble(),
+                        in.readDouble(), in.readFloat(), in.readByte(), in.readUTF()));
+            }
+        } catch (EOFException ignored) {
+            // End of queue, or a record torn by process death; either way we're done.
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read queued updates", e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.lucubrate.mirrortracker;
+
+import android.location.Address;
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+
+/**
+ * Reverse geocoded place: the city/state/country triple carried by {@link LocationEvent}.
+ */
+final class Place {
+    @Nullable final String city;
+    @Nullable final String state;
+    @Nullable final String country;
+
+    Place(@Nullable String city, @Nullable String state, @Nullable String country) {
+        this.city = city;
+        this.state = state;
+        this.country = country;
+    }
+
+    static Place fromAddress(Address address) {
+        return new Place(address.getLocality(), address.getAdminArea(), address.getCountryName());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Place)) {
+            return false;
+        }
+        Place p = (Place) o;
+        return Objects.equals(city, p.city) && Objects.equals(state, p.state) &&
+                Objects.equals(country, p.country);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(city, state, country);
+    }
+
+    @Override
+    public String toString() {
+        return city + ", " + state + ", " + country;
+    }
+}
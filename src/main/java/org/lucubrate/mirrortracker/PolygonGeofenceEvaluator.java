@@ -0,0 +1,102 @@
+package org.lucubrate.mirrortracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_ENTER;
+import static com.google.android.gms.location.Geofence.GEOFENCE_TRANSITION_EXIT;
+
+/**
+ * Detects enter/exit transitions of polygon geofences, which GMS can't monitor.
+ * <p>
+ * Each location update is tested against the polygons in {@link GeofenceIndex}, and compared with
+ * the set of polygons the device was last inside.  Differences become geofence transition updates,
+ * just like those from {@link GeofenceReceiver}.  The inside set is persisted to shared
+ * preferences, since updates arrive in short-lived broadcasts.
+ */
+final class PolygonGeofenceEvaluator {
+    private static final String TAG = "PolygonGeofenceEval";
+
+    /** Fixes less accurate than this could flap across polygon edges, so are ignored. */
+    final private static float MAX_ACCURACY_METERS = 200;
+
+    private static PolygonGeofenceEvaluator mEvaluator;
+
+    private final SharedPreferences mPrefs;
+
+    /** Gets singleton instance of PolygonGeofenceEvaluator. */
+    static synchronized PolygonGeofenceEvaluator getInstance(Context context) {
+        if (mEvaluator == null) {
+            mEvaluator = new PolygonGeofenceEvaluator(context.getApplicationContext());
+        }
+        return mEvaluator;
+    }
+
+    private PolygonGeofenceEvaluator(Context context) {
+        mPrefs = context.getSharedPreferences(
+                Preferences.PREFERENCE_FILE_NAME.val, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param updates time-ordered location updates
+     * @return updates along with any polygon transitions they cause, in time order
+     */
+    synchronized List<LocationUpdate> evaluate(List<LocationUpdate> updates) {
+        GeofenceIndex index = GeofenceIndex.getInstance();
+        if (!index.isLoaded()) {
+            // Without polygons, every polygon would look exited.
+            return updates;
+        }
+
+        Set<String> stored = mPrefs.getStringSet(
+                Preferences.INSIDE_POLYGONS_PREF_KEY.val, Collections.emptySet());
+        Set<String> inside = new HashSet<>(stored);
+        // Polygons removed from the db are forgotten rather than exited.
+        inside.retainAll(index.polygonLabels());
+
+        List<LocationUpdate> transitions = new ArrayList<>();
+        for (LocationUpdate u : updates) {
+            if (u.accuracy > MAX_ACCURACY_METERS) {
+                continue;
+            }
+            Set<String> now = index.polygonsAt(u.lat, u.lng);
+            for (String label : inside) {
+                if (!now.contains(label)) {
+                    transitions.add(transition(u, GEOFENCE_TRANSITION_EXIT, label));
+                }
+            }
+            for (String label : now) {
+                if (!inside.contains(label)) {
+                    transitions.add(transition(u, GEOFENCE_TRANSITION_ENTER, label));
+                }
+            }
+            inside = now;
+        }
+
+        if (!inside.equals(stored)) {
+            mPrefs.edit().putStringSet(Preferences.INSIDE_POLYGONS_PREF_KEY.val, inside).apply();
+        }
+        if (transitions.isEmpty()) {
+            return updates;
+        }
+        Log.d(TAG, transitions.size() + " polygon geofence transitions");
+        List<LocationUpdate> merged = new ArrayList<>(updates);
+        merged.addAll(transitions);
+        // Stable, so each transition stays after the fix that caused it.
+        Collections.sort(merged, Comparator.comparingLong(u -> u.time));
+        return merged;
+    }
+
+    private static LocationUpdate transition(LocationUpdate u, int transition, String label) {
+        return new LocationUpdate(LocationUpdate.SOURCE_GEOFENCE, u.time, u.lat, u.lng,
+                u.accuracy, transition, label);
+    }
+}
@@ -3,7 +3,39 @@ package org.lucubrate.mirrortracker;
 /** Keys for app shared preferences. */
 enum Preferences {
     PREFERENCE_FILE_NAME("mirror"),
-    SHARE_LOCATION_PREF_KEY("share")
+    SHARE_LOCATION_PREF_KEY("share"),
+    // Minimum distance in meters an unchanged city/state/country must move to be rewritten.
+    WRITE_MIN_DISTANCE_PREF_KEY("write_min_distance"),
+    // Max time in ms between location writes, even if location is unchanged.
+    WRITE_HEARTBEAT_PREF_KEY("write_heartbeat"),
+    // Last location acknowledged by the db.
+    LAST_LOCATION_TIMESTAMP_PREF_KEY("last_location_timestamp"),
+    LAST_LOCATION_CITY_PREF_KEY("last_location_city"),
+    LAST_LOCATION_STATE_PREF_KEY("last_location_state"),
+    LAST_LOCATION_COUNTRY_PREF_KEY("last_location_country"),
+    LAST_LOCATION_LAT_PREF_KEY("last_location_lat"),
+    LAST_LOCATION_LNG_PREF_KEY("last_location_lng"),
+    LAST_LOCATION_LABEL_PREF_KEY("last_location_label"),
+    // Fingerprints of geofences registered with GMS.
+    REGISTERED_GEOFENCES_PREF_KEY("registered_geofences"),
+    // Center of the registered geofence window; see GeofenceWindow.
+    WINDOW_CENTER_LAT_PREF_KEY("window_center_lat"),
+    WINDOW_CENTER_LNG_PREF_KEY("window_center_lng"),
+    // Labels of polygon geofences the device was last inside; see PolygonGeofenceEvaluator.
+    INSIDE_POLYGONS_PREF_KEY("inside_polygons"),
+    // Fused location request tier in effect, or absent if not tracking; see FixScheduler.
+    FIX_TIER_PREF_KEY("fix_tier"),
+    // Recent fixes; see MotionStateMachine.
+    MOTION_WINDOW_PREF_KEY("motion_window"),
+    // Kalman filter state; see LocationFilter.
+    FILTER_TIME_PREF_KEY("filter_time"),
+    FILTER_LAT_PREF_KEY("filter_lat"),
+    FILTER_LNG_PREF_KEY("filter_lng"),
+    FILTER_VARIANCE_PREF_KEY("filter_variance"),
+    FILTER_REJECT_STREAK_PREF_KEY("filter_reject_streak"),
+    // Next slots of the db's track/ and transitions/ rings to write; see FirebaseDB.
+    NEXT_TRACK_SLOT_PREF_KEY("next_track_slot"),
+    NEXT_TRANSITION_SLOT_PREF_KEY("next_transition_slot")
     ;
 
     final String val;
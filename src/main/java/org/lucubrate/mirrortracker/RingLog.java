@@ -0,0 +1,314 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-size record log in a memory-mapped ring buffer file.
+ * <p>
+ * The file starts with a header holding the offsets of the oldest record (head) and of the next
+ * write (tail), followed by the data region.  Each record is framed as a 4 byte payload length, a
+ * 4 byte CRC32 of the payload, then the payload.  Records never straddle the end of the data
+ * region; a {@link #WRAP} length, or too little room for a frame header, marks where the ring
+ * wraps.  Appending evicts records from the head until the new one fits, so costs O(1) amortized,
+ * and records live only in the mapped file, which the OS persists.
+ * <p>
+ * The tail is advanced only after a record is fully written, so a crash can at worst lose the
+ * record being written.  On open, records from head to tail are checked and the tail is pulled
+ * back to the last intact one.
+ * <p>
+ * Records are numbered with sequence numbers, counting up from the oldest record at open.  The
+ * offset of every {@link #INDEX_STRIDE}th record is kept in a small in-memory index, so reading a
+ * record by sequence number walks at most that many frames.
+ */
+final class RingLog {
+    private static final String TAG = "RingLog";
+
+    final private static int MAGIC = 0x4d54524c;  // "MTRL"
+    final private static int VERSION = 1;
+    // Header: magic, version, data capacity, head, tail.
+    final private static int HEADER_BYTES = 20;
+    final private static int HEAD_OFFSET = 12;
+    final private static int TAIL_OFFSET = 16;
+    final private static int FRAME_BYTES = 8;
+    /** Record length marking that the ring wraps to the start of the data region. */
+    final private static int WRAP = -1;
+    final private static int INDEX_STRIDE = 64;
+
+    private final MappedByteBuffer mBuf;
+    private final int mCapacity;
+    private final CRC32 mCrc = new CRC32();
+    // Offsets into the data region.  head == tail means empty; appends always leave a gap.
+    private int mHead;
+    private int mTail;
+    // Sequence numbers of the record at head, and of the next record appended.
+    private long mHeadSequence;
+    private long mTailSequence;
+    // Offset of record number k * INDEX_STRIDE, at k modulo length.  Sized to cover as many
+    // records as fit in the ring.
+    private final int[] mIndex;
+
+    /**
+     * Opens, creating if needed, the log in file.
+     * @param capacity data region size in bytes; if it differs from an existing file's, the file
+     *                 is recreated empty
+     */
+    RingLog(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mIndex = new int[capacity / FRAME_BYTES / INDEX_STRIDE + 2];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean fresh = raf.length() != HEADER_BYTES + capacity;
+            if (fresh) {
+                raf.setLength(0);
+                raf.setLength(HEADER_BYTES + capacity);
+            }
+            // The mapping stays valid after the channel is closed.
+            mBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + capacity);
+            if (fresh || mBuf.getInt(0) != MAGIC || mBuf.getInt(4) != VERSION ||
+                    mBuf.getInt(8) != capacity) {
+                mBuf.putInt(0, MAGIC);
+                mBuf.putInt(4, VERSION);
+                mBuf.putInt(8, capacity);
+                setHead(0);
+                setTail(0);
+            } else {
+                mHead = mBuf.getInt(HEAD_OFFSET);
+                mTail = mBuf.getInt(TAIL_OFFSET);
+                recover();
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /** @return sequence number of the oldest record */
+    synchronized long firstSequence() {
+        return mHeadSequence;
+    }
+
+    /** @return sequence number the next appended record will get */
+    synchronized long nextSequence() {
+        return mTailSequence;
+    }
+
+    /**
+     * Appends a record holding payload's remaining bytes, evicting the oldest records as needed.
+     * Consumes payload.
+     */
+    synchronized void append(ByteBuffer payload) {
+        int length = payload.remaining();
+        int need = FRAME_BYTES + length;
+        if (need >= mCapacity) {
+            Log.w(TAG, "dropping oversize record of " + length + " bytes");
+            payload.position(payload.limit());
+            return;
+        }
+        if (mHead == mTail) {
+            // Empty; start from the beginning so there's the most contiguous room.
+            setHead(0);
+            setTail(0);
+        }
+        while (true) {
+            if (mHead <= mTail) {
+                // Free space is [tail, capacity) and [0, head).
+                if (mCapacity - mTail >= need && (mHead > 0 || mCapacity - mTail > need)) {
+                    break;
+                }
+                if (mHead == 0) {
+                    evict();
+                    continue;
+                }
+                if (mCapacity - mTail >= FRAME_BYTES) {
+                    mBuf.putInt(HEADER_BYTES + mTail, WRAP);
+                }
+                setTail(0);
+            } else {
+                // Free space is [tail, head), which must not fill completely.
+                if (mHead - mTail > need) {
+                    break;
+                }
+                evict();
+            }
+        }
+
+        if (mTailSequence % INDEX_STRIDE == 0) {
+            mIndex[(int) (mTailSequence / INDEX_STRIDE % mIndex.length)] = mTail;
+        }
+        int pos = HEADER_BYTES + mTail;
+        int start = payload.position();
+        mCrc.reset();
+        mCrc.update(payload);
+        payload.position(start);
+        mBuf.putInt(pos, length);
+        mBuf.putInt(pos + 4, (int) mCrc.getValue());
+        mBuf.position(pos + FRAME_BYTES);
+        mBuf.put(payload);
+        setTail(mTail + need == mCapacity ? 0 : mTail + need);
+        mTailSequence++;
+    }
+
+    /** Writes appended records through to storage. */
+    synchronized void force() {
+        mBuf.force();
+    }
+
+    /**
+     * @return payload of the record with sequence number, or null if it has been evicted, not
+     * yet been appended, or isn't intact
+     */
+    @Nullable
+    synchronized byte[] read(long sequence) {
+        if (sequence < mHeadSequence || sequence >= mTailSequence) {
+            return null;
+        }
+        long checkpoint = sequence - sequence % INDEX_STRIDE;
+        long at;
+        int pos;
+        if (checkpoint >= mHeadSequence) {
+            at = checkpoint;
+            pos = mIndex[(int) (checkpoint / INDEX_STRIDE % mIndex.length)];
+        } else {
+            at = mHeadSequence;
+            pos = normalize(mHead);
+        }
+        for (; at < sequence; at++) {
+            pos = normalize(pos + FRAME_BYTES + mBuf.getInt(HEADER_BYTES + pos));
+        }
+        return readAt(pos);
+    }
+
+    /** Drops the oldest record. */
+    private void evict() {
+        int pos = normalize(mHead);
+        if (pos == mTail) {
+            setHead(mTail);
+            return;
+        }
+        setHead(pos + FRAME_BYTES + mBuf.getInt(HEADER_BYTES + pos));
+        mHeadSequence++;
+    }
+
+    /** @return pos, or 0 if the ring wraps at pos */
+    private int normalize(int pos) {
+        if (mCapacity - pos < FRAME_BYTES || mBuf.getInt(HEADER_BYTES + pos) == WRAP) {
+            return 0;
+        }
+        return pos;
+    }
+
+    /** @return payload of the record at pos, or null if it isn't intact */
+    @Nullable
+    private byte[] readAt(int pos) {
+        int length = mBuf.getInt(HEADER_BYTES + pos);
+        if (length < 0 || length > mCapacity - pos - FRAME_BYTES) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer src = mBuf.duplicate();
+        src.position(HEADER_BYTES + pos + FRAME_BYTES);
+        src.get(payload);
+        mCrc.reset();
+        mCrc.update(payload);
+        if ((int) mCrc.getValue() != mBuf.getInt(HEADER_BYTES + pos + 4)) {
+            return null;
+        }
+        return payload;
+    }
+
+    /** Pulls the tail back to just after the last intact record. */
+    private void recover() {
+        if (mHead < 0 || mHead >= mCapacity || mTail < 0 || mTail >= mCapacity) {
+            Log.w(TAG, "corrupt header; clearing log");
+            setHead(0);
+            setTail(0);
+            return;
+        }
+        int pos = mHead;
+        long walked = 0;
+        while (pos != mTail) {
+            int next = normalize(pos);
+            if (next == mTail) {
+                return;
+            }
+            byte[] payload = readAt(next);
+            if (payload == null) {
+                Log.w(TAG, "truncating log at damaged record " + next);
+                setTail(next);
+                return;
+            }
+            if (mTailSequence % INDEX_STRIDE == 0) {
+                mIndex[(int) (mTailSequence / INDEX_STRIDE % mIndex.length)] = next;
+            }
+            mTailSequence++;
+            pos = next + FRAME_BYTES + payload.length;
+            walked += FRAME_BYTES + payload.length;
+            if (walked > mCapacity) {
+                // Tail isn't on a record boundary.
+                Log.w(TAG, "corrupt tail; clearing log");
+                setHead(0);
+                setTail(0);
+                mTailSequence = 0;
+                return;
+            }
+        }
+    }
+
+    private void setHead(int head) {
+        mHead = head;
+        mBuf.putInt(HEAD_OFFSET, head);
+    }
+
+    private void setTail(int tail) {
+        mTail = tail;
+        mBuf.putInt(TAIL_OFFSET, tail);
+    }
+
+    /** @return framed record for payload, as stored by the ring */
+    static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(FRAME_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Reads the record at buf's position, advancing past it if intact.  Uses the same framing as
+     * the ring, so also reads records from flat files written with {@link #frame}.
+     * @return record payload, or null if buf holds no intact record at its position
+     */
+    @Nullable
+    static byte[] parse(ByteBuffer buf) {
+        if (buf.remaining() < FRAME_BYTES) {
+            return null;
+        }
+        int start = buf.position();
+        int length = buf.getInt();
+        int checksum = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            buf.position(start);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            buf.position(start);
+            return null;
+        }
+        return payload;
+    }
+}
@@ -13,11 +13,11 @@ import android.os.Bundle;
 import android.os.IBinder;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.text.Editable;
-import android.text.method.ScrollingMovementMethod;
 import android.view.View;
-import android.widget.TextView;
 
 import com.firebase.ui.auth.AuthUI;
 import com.google.firebase.auth.FirebaseAuth;
@@ -25,18 +25,18 @@ import com.google.firebase.auth.FirebaseAuth;
 import org.lucubrate.mirrortracker.databinding.ActivitySignedInBinding;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.TimeZone;
 
 /** Main activity, shown to signed-in users. */
 public class SignedInActivity extends AppCompatActivity
-        implements FirebaseDbObserver, SignedInHandler, DebugLogWriteObserver {
+        implements FirebaseDbObserver, SignedInHandler, LocationBus.Subscriber {
 
     private Model mModel;
+    private final DebugLogAdapter mDebugLogAdapter = new DebugLogAdapter();
 
     private boolean mBound = false;
     private LocationService mService;
@@ -62,14 +62,23 @@ public class SignedInActivity extends AppCompatActivity
         Intent i = new Intent(this, LocationService.class);
         startService(i);  // start explicitly to make service sticky
         bindService(i, mConnection, Context.BIND_AUTO_CREATE);
+        LocationBus.getInstance().subscribe(this, getMainExecutor());
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mModel = new Model(
-                getString(R.string.loading), true, true, "", "");
+        // Paint the last state shown right away; the service and db reconcile it once bound.
+        UiSnapshot snapshot = UiSnapshot.read(getFilesDir());
+        if (snapshot != null) {
+            mModel = new Model(snapshot.lastKnownLocation, snapshot.showPrivateInfo,
+                    snapshot.shareLocation, snapshot.memo, this::saveSnapshot);
+            mDebugLogAdapter.setPlaceholder(snapshot.logTail);
+        } else {
+            mModel = new Model(
+                    getString(R.string.loading), true, true, "", this::saveSnapshot);
+        }
         syncModelToService();
 
         ActivitySignedInBinding binding = DataBindingUtil.setContentView(
@@ -84,15 +93,23 @@ public class SignedInActivity extends AppCompatActivity
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        ((TextView) findViewById(R.id.debugLog)).setMovementMethod(new ScrollingMovementMethod());
+        RecyclerView debugLog = findViewById(R.id.debugLog);
+        debugLog.setLayoutManager(new LinearLayoutManager(this));
+        debugLog.setAdapter(mDebugLogAdapter);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        if (mModel != null) {
+            // The log tail isn't saved as it changes, so catch it up.
+            saveSnapshot();
+        }
+        LocationBus.getInstance().unsubscribe(this);
         if (mBound) {
             mService.setFireBaseDbObserver(null);
             mService.setDebugLogWriteOberver(null);
+            mDebugLogAdapter.setLog(null);
             unbindService(mConnection);
             mBound = false;
         }
@@ -171,13 +188,12 @@ public class SignedInActivity extends AppCompatActivity
         return sdf.format(c.getTime());
     }
 
-    @Override
-    public void onLogWritten(List<String> logLines) {
-        if (mModel != null) {
-            List<String> descending = new ArrayList<>(logLines);
-            Collections.reverse(descending);
-            mModel.setDebugLog(String.join("\n", descending));
-        }
+    /** Persists what's shown, for the next {@link #onCreate}. */
+    private void saveSnapshot() {
+        new UiSnapshot(mModel.getLastKnownLocation(), mModel.getMemo(),
+                mModel.isShowPrivateInfo(), mModel.isShareLocation(),
+                mDebugLogAdapter.newestLines(UiSnapshot.LOG_TAIL_LINES))
+                .saveAsync(getFilesDir());
     }
 
     /** Android databinding model for layout. */
@@ -186,15 +202,16 @@ public class SignedInActivity extends AppCompatActivity
         private boolean shareLocation;
         private String lastKnownLocation;
         private String memo;
-        private String debugLog;
+        // Called after any property changes.
+        private final Runnable onChanged;
 
         Model(String lastKnownLocation, boolean showPrivateInfo, boolean shareLocation,
-              String memo, String debugLog) {
+              String memo, Runnable onChanged) {
             this.lastKnownLocation = lastKnownLocation;
             this.showPrivateInfo = showPrivateInfo;
             this.shareLocation = shareLocation;
             this.memo = memo;
-            this.debugLog = debugLog;
+            this.onChanged = onChanged;
         }
 
         /**
@@ -206,8 +223,12 @@ public class SignedInActivity extends AppCompatActivity
         }
 
         void setShowPrivateInfo(boolean showPrivateInfo) {
+            if (this.showPrivateInfo == showPrivateInfo) {
+                return;
+            }
             this.showPrivateInfo = showPrivateInfo;
             notifyPropertyChanged(BR.showPrivateInfo);
+            onChanged.run();
         }
 
         /**
@@ -219,8 +240,12 @@ public class SignedInActivity extends AppCompatActivity
         }
 
         void setShareLocation(boolean shareLocation) {
+            if (this.shareLocation == shareLocation) {
+                return;
+            }
             this.shareLocation = shareLocation;
             notifyPropertyChanged(BR.shareLocation);
+            onChanged.run();
         }
 
         /**
@@ -232,8 +257,12 @@ public class SignedInActivity extends AppCompatActivity
         }
 
         void setLastKnownLocation(String lastKnownLocation) {
+            if (Objects.equals(this.lastKnownLocation, lastKnownLocation)) {
+                return;
+            }
             this.lastKnownLocation = lastKnownLocation;
             notifyPropertyChanged(BR.lastKnownLocation);
+            onChanged.run();
         }
 
         /**
@@ -245,28 +274,24 @@ public class SignedInActivity extends AppCompatActivity
         }
 
         void setMemo(String memo) {
+            if (Objects.equals(this.memo, memo)) {
+                return;
+            }
             this.memo = memo;
             notifyPropertyChanged(BR.memo);
-        }
-
-        /**
-         * @return Debug log text, if any.
-         */
-        @Bindable
-        public String getDebugLog() {
-            return debugLog;
-        }
-
-        void setDebugLog(String debugLog) {
-            this.debugLog = debugLog;
-            notifyPropertyChanged(BR.debugLog);
+            onChanged.run();
         }
     }
 
     private void syncModelToService() {
         if (mBound  && mModel != null) {
-            mModel.setShowPrivateInfo(mService.showPrivateInfo());
-            mModel.setMemo(mService.memo());
+            // Values not loaded yet would clobber the snapshot; they arrive via the observer.
+            if (mService.isShowPrivateInfoLoaded()) {
+                mModel.setShowPrivateInfo(mService.showPrivateInfo());
+            }
+            if (mService.isMemoLoaded()) {
+                mModel.setMemo(mService.memo());
+            }
             mModel.setShareLocation(mService.shareLocation());
             onLocationUpdated(mService.getLastLocation());
         }
@@ -281,8 +306,8 @@ public class SignedInActivity extends AppCompatActivity
             mService = binder.getService();
             mBound = true;
             mService.setFireBaseDbObserver(SignedInActivity.this);
-            mService.setDebugLogWriteOberver(SignedInActivity.this);
-            SignedInActivity.this.onLogWritten(mService.debugLogLines());
+            mDebugLogAdapter.setLog(mService.debugLog());
+            mService.setDebugLogWriteOberver(mDebugLogAdapter);
             syncModelToService();
         }
 
@@ -0,0 +1,81 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent append-only mapping of strings to small integer ids.
+ * <p>
+ * Ids are assigned in order of first use.  Each string is appended to the file as one record in
+ * {@link RingLog} framing, so a string's id is its record index, and a torn final record is
+ * truncated on open.
+ */
+final class StringDictionary {
+    private static final String TAG = "StringDictionary";
+
+    private final File mFile;
+    private final Map<String, Integer> mIds = new HashMap<>();
+    private final List<String> mStrings = new ArrayList<>();
+    @Nullable private FileOutputStream mOut;
+
+    StringDictionary(File file) throws IOException {
+        mFile = file;
+        if (file.exists()) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] record;
+            while ((record = RingLog.parse(buf)) != null) {
+                String s = new String(record, StandardCharsets.UTF_8);
+                mIds.put(s, mStrings.size());
+                mStrings.add(s);
+            }
+            if (buf.position() < file.length()) {
+                Log.w(TAG, "truncating torn tail of " + file.getName());
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(buf.position());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return id of s, assigning and persisting a new one if s hasn't been seen before; -1 if a
+     * new id couldn't be persisted
+     */
+    synchronized int intern(String s) {
+        Integer id = mIds.get(s);
+        if (id != null) {
+            return id;
+        }
+        try {
+            if (mOut == null) {
+                mOut = new FileOutputStream(mFile, true);
+            }
+            mOut.write(RingLog.frame(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            Log.w(TAG, "failed to persist dictionary entry", e);
+            return -1;
+        }
+        id = mStrings.size();
+        mIds.put(s, id);
+        mStrings.add(s);
+        return id;
+    }
+
+    /** @return string with id, or null if there's none */
+    @Nullable
+    synchronized String lookup(int id) {
+        return id >= 0 && id < mStrings.size() ? mStrings.get(id) : null;
+    }
+}
@@ -0,0 +1,25 @@
+package org.lucubrate.mirrortracker;
+
+import com.google.firebase.database.IgnoreExtraProperties;
+
+/**
+ * POJO representing a point on the user's recent path.  Unlike {@link LocationEvent}, track points
+ * aren't geocoded.  They're stored in a fixed number of reused slots, so order them by timestamp.
+ */
+@IgnoreExtraProperties
+public class TrackPoint {
+    public long timestamp;
+    public double lat;
+    public double lng;
+
+    public TrackPoint(long timestamp, double lat, double lng) {
+        this.timestamp = timestamp;
+        this.lat = lat;
+        this.lng = lng;
+    }
+
+    /** @noinspection unused*/
+    public TrackPoint() {
+        // Default constructor required for calls to DataSnapshot.getValue(TrackPoint.class)
+    }
+}
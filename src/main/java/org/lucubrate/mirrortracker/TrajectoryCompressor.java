@@ -0,0 +1,90 @@
+package org.lucubrate.mirrortracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Simplifies a batch of location fixes with the Douglas-Peucker algorithm.
+ */
+final class TrajectoryCompressor {
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private TrajectoryCompressor() {
+        throw new RuntimeException("Do not instantiate.");
+    }
+
+    /**
+     * @param points fixes in time order
+     * @param toleranceMeters max distance a dropped fix may lie from the simplified path
+     * @return the subset of points that preserves the path's shape to within toleranceMeters, in
+     * time order.  A batch that never strays more than toleranceMeters from its start collapses to
+     * its newest fix.
+     */
+    static List<LocationUpdate> simplify(List<LocationUpdate> points, double toleranceMeters) {
+        int n = points.size();
+        if (n <= 1) {
+            return points;
+        }
+
+        // Project to a local equirectangular plane in meters; fine at batch scale.
+        double lngScale = Math.cos(Math.toRadians(points.get(0).lat)) * METERS_PER_DEGREE;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        boolean moved = false;
+        for (int i = 0; i < n; i++) {
+            x[i] = (points.get(i).lng - points.get(0).lng) * lngScale;
+            y[i] = (points.get(i).lat - points.get(0).lat) * METERS_PER_DEGREE;
+            moved |= Math.hypot(x[i], y[i]) > toleranceMeters;
+        }
+        if (!moved) {
+            return Collections.singletonList(points.get(n - 1));
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[] {0, n - 1});
+        while (!ranges.isEmpty()) {
+            int[] r = ranges.pop();
+            int first = r[0];
+            int last = r[1];
+            int farthest = -1;
+            double maxDist = toleranceMeters;
+            for (int i = first + 1; i < last; i++) {
+                double d = segmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d > maxDist) {
+                    maxDist = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                ranges.push(new int[] {first, farthest});
+                ranges.push(new int[] {farthest, last});
+            }
+        }
+
+        List<LocationUpdate> simplified = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                simplified.add(points.get(i));
+            }
+        }
+        return simplified;
+    }
+
+    /** @return distance from (px, py) to the segment (ax, ay)-(bx, by) */
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx,
+                                          double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lenSq = dx * dx + dy * dy;
+        double t = lenSq == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lenSq;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+}
@@ -0,0 +1,23 @@
+package org.lucubrate.mirrortracker;
+
+import com.google.firebase.database.IgnoreExtraProperties;
+
+/**
+ * POJO representing a geofence enter/exit at a timestamped user location.  Transitions are stored
+ * in a fixed number of reused slots, so order them by timestamp.
+ */
+@IgnoreExtraProperties
+public class TransitionEvent extends LocationEvent {
+    /** "enter" or "exit". */
+    public String transition;
+
+    public TransitionEvent(LocationEvent e, String transition) {
+        super(e.timestamp, e.city, e.state, e.country, e.lat, e.lng, e.label);
+        this.transition = transition;
+    }
+
+    /** @noinspection unused*/
+    public TransitionEvent() {
+        // Default constructor required for calls to DataSnapshot.getValue(TransitionEvent.class)
+    }
+}
@@ -0,0 +1,120 @@
+package org.lucubrate.mirrortracker;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Last state shown by {@link SignedInActivity}, persisted so the activity can paint it on create
+ * without waiting for {@link LocationService} or the db.
+ * <p>
+ * The snapshot is a few hundred bytes in a small binary file, so reading it is a single short
+ * read.  Writes go to a temporary file that is renamed over the old one, on a background thread,
+ * and rapid successive writes are coalesced to the newest.
+ */
+final class UiSnapshot {
+    private static final String TAG = "UiSnapshot";
+    final private static String FILE_NAME = "ui_snapshot.bin";
+    final private static int VERSION = 1;
+    /** Number of newest debug log lines kept. */
+    final static int LOG_TAIL_LINES = 20;
+
+    private static final Executor mExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicReference<UiSnapshot> mPending = new AtomicReference<>();
+
+    final String lastKnownLocation;
+    final String memo;
+    final boolean showPrivateInfo;
+    final boolean shareLocation;
+    /** Newest debug log lines, newest first. */
+    final List<String> logTail;
+
+    UiSnapshot(@Nullable String lastKnownLocation, @Nullable String memo,
+               boolean showPrivateInfo, boolean shareLocation, List<String> logTail) {
+        this.lastKnownLocation = lastKnownLocation != null ? lastKnownLocation : "";
+        this.memo = memo != null ? memo : "";
+        this.showPrivateInfo = showPrivateInfo;
+        this.shareLocation = shareLocation;
+        this.logTail = logTail;
+    }
+
+    /** @return snapshot saved in dir, or null if there is none or it can't be read */
+    @Nullable
+    static UiSnapshot read(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String lastKnownLocation = in.readUTF();
+            String memo = in.readUTF();
+            boolean showPrivateInfo = in.readBoolean();
+            boolean shareLocation = in.readBoolean();
+            int lines = Math.min(in.readInt(), LOG_TAIL_LINES);
+            List<String> logTail = new ArrayList<>(Math.max(0, lines));
+            for (int i = 0; i < lines; i++) {
+                logTail.add(in.readUTF());
+            }
+            return new UiSnapshot(lastKnownLocation, memo, showPrivateInfo, shareLocation,
+                    logTail);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read ui snapshot", e);
+            return null;
+        }
+    }
+
+    /** Saves this snapshot to dir in the background, replacing any not yet written. */
+    void saveAsync(File dir) {
+        if (mPending.getAndSet(this) == null) {
+            mExecutor.execute(() -> {
+                UiSnapshot snapshot = mPending.getAndSet(null);
+                if (snapshot != null) {
+                    snapshot.write(dir);
+                }
+            });
+        }
+    }
+
+    private void write(File dir) {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(lastKnownLocation);
+            out.writeUTF(memo);
+            out.writeBoolean(showPrivateInfo);
+            out.writeBoolean(shareLocation);
+            int lines = Math.min(logTail.size(), LOG_TAIL_LINES);
+            out.writeInt(lines);
+            for (int i = 0; i < lines; i++) {
+                out.writeUTF(logTail.get(i));
+            }
+        } catch (IOException e) {
+            // Also thrown for strings too long for writeUTF, e.g. a huge memo.
+            Log.w(TAG, "failed to write ui snapshot", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, FILE_NAME))) {
+            Log.w(TAG, "failed to replace ui snapshot");
+        }
+    }
+}